@@ -1,5 +1,6 @@
 plugins {
     id("java")
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "com.jrmh"
@@ -18,6 +19,8 @@ java {
 dependencies {
     // https://mvnrepository.com/artifact/org.eclipse.paho/org.eclipse.paho.client.mqttv3
     implementation("org.eclipse.paho:org.eclipse.paho.client.mqttv3:1.2.5")
+    // https://mvnrepository.com/artifact/org.eclipse.paho/org.eclipse.paho.mqttv5.client
+    implementation("org.eclipse.paho:org.eclipse.paho.mqttv5.client:1.2.5")
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
 }
@@ -26,6 +29,68 @@ tasks.test {
     useJUnitPlatform()
 }
 
+// Benchmarks of the client-side hot paths in src/jmh, run them all with `./gradlew jmh`
+jmh {
+    jmhVersion.set("1.37")
+    profilers.add("gc") // reports gc.alloc.rate.norm, the bytes allocated per operation
+    resultFormat.set("CSV")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.csv"))
+    // e.g. -Pbenchmarks=AnalysisPath to run a subset
+    project.findProperty("benchmarks")?.toString()?.let { includes.add(it) }
+}
+
+// Bytes per operation the allocation-free hot paths may allocate, anything above means a regression
+val allocationBudgets = mapOf(
+    "com.jrmh.PublishPathBenchmark.asciiEncode" to 1.0,
+    "com.jrmh.PublishPathBenchmark.binaryEncode" to 1.0,
+    "com.jrmh.AnalysisPathBenchmark.asciiOnMessage" to 1.0,
+    "com.jrmh.AnalysisPathBenchmark.binaryOnMessage" to 1.0,
+    "com.jrmh.AnalysisPathBenchmark.ringHandOff" to 1.0,
+    "com.jrmh.AnalysisPathBenchmark.manyTopicsOnMessage" to 1.0,
+    "com.jrmh.MetricsBenchmark.recordPublish" to 1.0,
+    "com.jrmh.MetricsBenchmark.sharedCounter" to 1.0,
+)
+
+val checkAllocationBudget = tasks.register("checkAllocationBudget") {
+    group = "verification"
+    description = "Fails if a hot path allocated more per operation than its budget in the last jmh run"
+    val results = layout.buildDirectory.file("results/jmh/results.csv")
+    // the budgeted benchmarks the last run included, all of them unless -Pbenchmarks picked a subset
+    val included = project.findProperty("benchmarks")?.toString()?.let { Regex(it) }
+    doLast {
+        val file = results.get().asFile
+        if (!file.exists()) {
+            throw GradleException("No jmh results at $file, run ./gradlew jmh first")
+        }
+        val measured = mutableSetOf<String>()
+        val exceeded = file.readLines().drop(1).mapNotNull { line ->
+            val cells = line.split(",").map { it.trim('"') }
+            val benchmark = cells[0].substringBefore(":")
+            val budget = allocationBudgets[benchmark]
+            val bytes = cells[4].toDoubleOrNull()
+            if (budget != null && cells[0].endsWith("gc.alloc.rate.norm") && bytes != null) {
+                measured.add(benchmark)
+            }
+            if (budget != null && cells[0].endsWith("gc.alloc.rate.norm") && bytes != null && bytes > budget) {
+                "$benchmark allocates $bytes B/op, budget $budget B/op"
+            } else {
+                null
+            }
+        }
+        val unmeasured = allocationBudgets.keys
+            .filter { included == null || included.containsMatchIn(it) }
+            .filter { it !in measured }
+            .map { "$it has no gc.alloc.rate.norm result" }
+        if (exceeded.isNotEmpty() || unmeasured.isNotEmpty()) {
+            throw GradleException("Allocation budget check failed:\n" + (exceeded + unmeasured).joinToString("\n"))
+        }
+    }
+}
+
+tasks.named("jmh") {
+    finalizedBy(checkAllocationBudget)
+}
+
 // Define a task to run Publisher
 tasks.register<JavaExec>("runPublisher") {
     group = "application"
@@ -37,6 +102,15 @@ tasks.register<JavaExec>("runPublisher") {
     project.findProperty("time")?.toString()?.let { publisherArgs.addAll(listOf("-t", it)) }
     project.findProperty("broker")?.toString()?.let { publisherArgs.addAll(listOf("-b", it)) }
     project.findProperty("worker")?.toString()?.let { publisherArgs.addAll(listOf("-w", it)) }
+    project.findProperty("window")?.toString()?.let { publisherArgs.addAll(listOf("-a", it)) }
+    project.findProperty("format")?.toString()?.let { publisherArgs.addAll(listOf("-f", it)) }
+    project.findProperty("connectRate")?.toString()?.let { publisherArgs.addAll(listOf("-c", it)) }
+    project.findProperty("node")?.toString()?.let { publisherArgs.addAll(listOf("-n", it)) }
+    project.findProperty("nodes")?.toString()?.let { publisherArgs.addAll(listOf("-N", it)) }
+    project.findProperty("persistenceDir")?.toString()?.let { publisherArgs.addAll(listOf("-P", it)) }
+    project.findProperty("metricsPort")?.toString()?.let { publisherArgs.addAll(listOf("-m", it)) }
+    if (project.hasProperty("virtual")) publisherArgs.add("-v")
+    if (project.hasProperty("embeddedBroker")) publisherArgs.add("-e")
     args = publisherArgs
     javaLauncher.set(javaToolchains.launcherFor {
         languageVersion.set(JavaLanguageVersion.of(22))
@@ -56,8 +130,56 @@ tasks.register<JavaExec>("runAnalyser") {
     project.findProperty("pqoss")?.toString()?.let { analyzerArgs.addAll(listOf("-p", it)) }
     project.findProperty("sqoss")?.toString()?.let { analyzerArgs.addAll(listOf("-s", it)) }
     project.findProperty("instanceCounts")?.toString()?.let { analyzerArgs.addAll(listOf("-i", it)) }
+    project.findProperty("ring")?.toString()?.let { analyzerArgs.addAll(listOf("-q", it)) }
+    project.findProperty("rates")?.toString()?.let { analyzerArgs.addAll(listOf("-r", it)) }
+    if (project.hasProperty("aggregateRate")) analyzerArgs.add("-A")
+    if (project.hasProperty("embeddedBroker")) analyzerArgs.add("-e")
+    project.findProperty("consumerCounts")?.toString()?.let { analyzerArgs.addAll(listOf("-c", it)) }
+    if (project.hasProperty("sharedSubscription")) analyzerArgs.add("-S")
+    project.findProperty("payloadSizes")?.toString()?.let { analyzerArgs.addAll(listOf("-z", it)) }
+    project.findProperty("batchSizes")?.toString()?.let { analyzerArgs.addAll(listOf("-k", it)) }
+    project.findProperty("batchBytes")?.toString()?.let { analyzerArgs.addAll(listOf("-B", it)) }
+    project.findProperty("linger")?.toString()?.let { analyzerArgs.addAll(listOf("-L", it)) }
+    project.findProperty("sessions")?.toString()?.let { analyzerArgs.addAll(listOf("-C", it)) }
+    project.findProperty("stores")?.toString()?.let { analyzerArgs.addAll(listOf("-P", it)) }
+    project.findProperty("topicCounts")?.toString()?.let { analyzerArgs.addAll(listOf("-o", it)) }
+    project.findProperty("protocols")?.toString()?.let { analyzerArgs.addAll(listOf("-V", it)) }
+    project.findProperty("repetitions")?.toString()?.let { analyzerArgs.addAll(listOf("-n", it)) }
+    project.findProperty("trace")?.toString()?.let { analyzerArgs.addAll(listOf("-T", it)) }
+    project.findProperty("metricsPort")?.toString()?.let { analyzerArgs.addAll(listOf("-m", it)) }
     args = analyzerArgs
     javaLauncher.set(javaToolchains.launcherFor {
         languageVersion.set(JavaLanguageVersion.of(22))
     })
-}
\ No newline at end of file
+}
+
+// Define a task to run the embedded broker on its own
+tasks.register<JavaExec>("runBroker") {
+    group = "application"
+    description = "Run the embedded MQTT broker"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.jrmh.EmbeddedBroker")
+    // Pass CLI arguments to EmbeddedBroker
+    val brokerArgs = mutableListOf<String>()
+    project.findProperty("host")?.toString()?.let { brokerArgs.addAll(listOf("-h", it)) }
+    project.findProperty("port")?.toString()?.let { brokerArgs.addAll(listOf("-p", it)) }
+    project.findProperty("ioThreads")?.toString()?.let { brokerArgs.addAll(listOf("-t", it)) }
+    args = brokerArgs
+    javaLauncher.set(javaToolchains.launcherFor {
+        languageVersion.set(JavaLanguageVersion.of(22))
+    })
+}
+// Define a task to print a message trace of the Analyser as CSV
+tasks.register<JavaExec>("readTrace") {
+    group = "application"
+    description = "Print the message trace of the Analyser as CSV"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.jrmh.TraceReader")
+    // Pass CLI arguments to TraceReader
+    val traceArgs = mutableListOf<String>()
+    project.findProperty("trace")?.toString()?.let { traceArgs.addAll(listOf("-T", it)) }
+    args = traceArgs
+    javaLauncher.set(javaToolchains.launcherFor {
+        languageVersion.set(JavaLanguageVersion.of(22))
+    })
+}
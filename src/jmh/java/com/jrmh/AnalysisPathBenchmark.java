@@ -0,0 +1,110 @@
+package com.jrmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the per-message work of the Analyser: parsing and accounting a received payload in
+ * {@link MessageStats}, and the hand-off through the {@link IngestRing}. Every benchmark writes the
+ * next counter into a reused payload first, so the accounting sees consecutive counters and
+ * sequence numbers as it does in a real run. The legacy benchmark is the receive callback the
+ * Analyser ran before the ingest ring and the histograms. The many-topics benchmark spreads the
+ * messages over as many topics as a large topic sweep, so every message probes the per-topic map.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AnalysisPathBenchmark {
+    private static final String TOPIC = "counter/3/1/0";
+    private static final int ASCII_DIGITS = 10;
+    private static final int PUBLISHERS = 16;
+    private static final int TOPICS = 10_000;
+    // the legacy gap list is cleared now and then, so the benchmark measures boxing and not heap growth
+    private static final int LEGACY_GAP_LIMIT = 1 << 20;
+
+    private final byte[] ascii = new byte[ASCII_DIGITS];
+    private final byte[] binary = new byte[BinaryPayload.LENGTH];
+    private final MessageStats stats = new MessageStats();
+    private final IngestRing ring = new IngestRing(1024);
+    private final String[] topics = new String[TOPICS];
+    private long counter;
+
+    private final List<Long> legacyGaps = new ArrayList<>();
+    private long legacyPrevMsg = -1;
+    private long legacyPrevMillis = -1;
+    private long legacyTotal = 0;
+    private long legacyOutOfOrder = 0;
+
+    @Setup
+    public void setup() {
+        stats.reset(new long[0]);
+        counter = 1_000_000_000L; // always ten digits
+        for (int i = 0; i < TOPICS; i++) {
+            topics[i] = PayloadEncoder.topic(i % PUBLISHERS + 1, 1, 0, i / PUBLISHERS);
+        }
+    }
+
+    /**
+     * The original receive callback: a String per payload, {@code Long.parseLong} and a boxed gap per message.
+     */
+    @Benchmark
+    public long legacyCallback() {
+        PayloadEncoder.writeDigits(counter++, ascii, 0, ASCII_DIGITS);
+        String payload = new String(ascii);
+        long now = System.currentTimeMillis();
+        long currentMsg = Long.parseLong(payload);
+        legacyTotal++;
+        if (legacyPrevMsg != -1 && currentMsg - legacyPrevMsg != 1) {
+            legacyOutOfOrder++;
+        }
+        if (legacyPrevMsg != -1 && currentMsg - legacyPrevMsg == 1) {
+            if (legacyGaps.size() == LEGACY_GAP_LIMIT) {
+                legacyGaps.clear();
+            }
+            legacyGaps.add(now - legacyPrevMillis);
+        }
+        legacyPrevMsg = currentMsg;
+        legacyPrevMillis = now;
+        return legacyTotal + legacyOutOfOrder;
+    }
+
+    @Benchmark
+    public int asciiOnMessage() {
+        PayloadEncoder.writeDigits(counter++, ascii, 0, ASCII_DIGITS);
+        stats.onMessage(TOPIC, ascii, System.nanoTime());
+        return stats.getTotalMessages();
+    }
+
+    @Benchmark
+    public int binaryOnMessage() {
+        long value = counter++;
+        BinaryPayload.write(binary, (int) (value % PUBLISHERS), value / PUBLISHERS, value, System.nanoTime());
+        stats.onMessage(TOPIC, binary, System.nanoTime());
+        return stats.getTotalMessages();
+    }
+
+    @Benchmark
+    public int manyTopicsOnMessage() {
+        long value = counter++;
+        BinaryPayload.write(binary, (int) (value % PUBLISHERS), value / PUBLISHERS, value, System.nanoTime());
+        stats.onMessage(topics[(int) (value % TOPICS)], binary, System.nanoTime());
+        return stats.getTotalMessages();
+    }
+
+    /**
+     * The full receive path on one thread: the callback's ring write and the analysis thread's poll.
+     */
+    @Benchmark
+    public int ringHandOff() {
+        long value = counter++;
+        BinaryPayload.write(binary, (int) (value % PUBLISHERS), value / PUBLISHERS, value, System.nanoTime());
+        ring.offer(TOPIC, binary, System.nanoTime());
+        return ring.poll(stats, 1);
+    }
+}
@@ -0,0 +1,61 @@
+package com.jrmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks what the live metrics add to every message: a publish recorded in an instance's
+ * {@link PublishMetrics}, which the publish loop and the completion callback do per message, and a
+ * counter shared by several threads, the striped {@link MetricsRegistry.Counter} against a single
+ * {@link AtomicLong} whose cache line every thread fights over.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    private static final int THREADS = 4;
+
+    @State(Scope.Thread)
+    public static class Instance {
+        private final MetricsRegistry registry = new MetricsRegistry();
+        private final PublishMetrics metrics = new PublishMetrics(registry.group("benchmark", "instance",
+                Long.toString(Thread.currentThread().threadId())));
+        private long latencyNanos = 0;
+
+        @TearDown
+        public void tearDown() {
+            registry.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        private final MetricsRegistry.Counter counter = new MetricsRegistry.Counter();
+        private final AtomicLong atomic = new AtomicLong();
+    }
+
+    /**
+     * One message of a publishing instance: sent, then completed with its latency.
+     */
+    @Benchmark
+    public void recordPublish(Instance instance) {
+        instance.metrics.onSent();
+        instance.metrics.onAcked(instance.latencyNanos++ & 0xFFFF);
+    }
+
+    @Benchmark
+    @Threads(THREADS)
+    public void sharedCounter(Shared shared) {
+        shared.counter.increment();
+    }
+
+    @Benchmark
+    @Threads(THREADS)
+    public void sharedAtomic(Shared shared) {
+        shared.atomic.incrementAndGet();
+    }
+}
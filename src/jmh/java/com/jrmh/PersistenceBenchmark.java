@@ -0,0 +1,107 @@
+package com.jrmh;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks what a client persistence adds to every QoS 1 message: the put when the PUBLISH is
+ * sent and the remove when the PUBACK arrives, over a window of in-flight keys like Paho's.
+ * {@code file} is Paho's {@code MqttDefaultFilePersistence}, which writes and syncs a file per
+ * message, {@code mmap} and {@code mmap-sync} the {@link MappedFilePersistence} log synced in
+ * batches and on every write.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PersistenceBenchmark {
+    private static final int IN_FLIGHT = 1000;
+
+    @Param({"memory", "file", "mmap", "mmap-sync"})
+    public String store;
+
+    private Path directory;
+    private MqttClientPersistence persistence;
+    private final String[] keys = new String[IN_FLIGHT];
+    private final Persistable message = new Persistable(new byte[]{0x32, 40, 0, 15}, new byte[BinaryPayload.LENGTH]);
+    private int next;
+
+    @Setup
+    public void setup() throws IOException, MqttException {
+        directory = Files.createTempDirectory("persistence");
+        persistence = Publisher.persistence(store, directory);
+        persistence.open("bench", "tcp://localhost:1883");
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            keys[i] = "s-" + (i + 1); // Paho's key of an outbound QoS 1 or 2 PUBLISH
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, MqttException {
+        persistence.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * One publish and its acknowledgement, the key is removed a full window after it was put.
+     */
+    @Benchmark
+    public void putAndRemove() throws MqttException {
+        String key = keys[next];
+        if (persistence.containsKey(key)) {
+            persistence.remove(key);
+        }
+        persistence.put(key, message);
+        next = (next + 1) % IN_FLIGHT;
+    }
+
+    /**
+     * A PUBLISH as Paho hands it to the persistence, its fixed and variable header apart from the payload.
+     */
+    private record Persistable(byte[] header, byte[] payload) implements MqttPersistable {
+        @Override
+        public byte[] getHeaderBytes() {
+            return header;
+        }
+
+        @Override
+        public int getHeaderLength() {
+            return header.length;
+        }
+
+        @Override
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        @Override
+        public byte[] getPayloadBytes() {
+            return payload;
+        }
+
+        @Override
+        public int getPayloadLength() {
+            return payload.length;
+        }
+
+        @Override
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+}
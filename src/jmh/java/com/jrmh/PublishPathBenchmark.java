@@ -0,0 +1,64 @@
+package com.jrmh;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the per-message work of the Publisher's publish loop: building the topic and the
+ * payload and wrapping them in an {@link MqttMessage}, before anything reaches the network.
+ * The legacy benchmark is the loop body the Publisher ran before the {@link PayloadEncoder},
+ * so the two can be compared in the same run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PublishPathBenchmark {
+    // the first counter value, small counters encode to short payloads and large ones to long payloads
+    @Param({"1", "1000000000"})
+    public long start;
+
+    private PayloadEncoder encoder;
+    private long counter;
+
+    @Setup
+    public void setup() {
+        encoder = new PayloadEncoder(1);
+        counter = start;
+    }
+
+    /**
+     * The original loop body: a formatted topic, a String and a byte[] for the counter and a new message.
+     */
+    @Benchmark
+    public void legacyFormatAndConstruct(Blackhole blackhole) {
+        blackhole.consume(String.format("counter/%d/%d/%d", 3, 1, 0));
+        MqttMessage message = new MqttMessage(Long.toString(counter++).getBytes());
+        message.setQos(1);
+        blackhole.consume(message);
+    }
+
+    /**
+     * The topic the Publisher now builds once per experiment, for scale.
+     */
+    @Benchmark
+    public String topic() {
+        return PayloadEncoder.topic(3, 1, 0);
+    }
+
+    @Benchmark
+    public MqttMessage asciiEncode() {
+        return encoder.encode(counter++);
+    }
+
+    @Benchmark
+    public MqttMessage binaryEncode() {
+        long value = counter++;
+        return encoder.encode(3, value, value, System.nanoTime());
+    }
+}
@@ -0,0 +1,69 @@
+package com.jrmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the end-of-experiment gap statistics: the boxed list and full sort the Analyser used
+ * for the median inter-message gap against the fixed-memory {@link Histogram}. Each operation
+ * accounts a whole experiment's worth of gaps, as the Analyser does once per experiment.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatisticsBenchmark {
+    // the number of gaps in one experiment
+    @Param({"100000", "1000000"})
+    public int size;
+
+    private long[] gaps;
+    private final Histogram histogram = new Histogram(600_000_000_000L, 3);
+
+    @Setup
+    public void setup() {
+        // gaps of 1 us to 10 ms, in nanoseconds
+        SplittableRandom random = new SplittableRandom(42);
+        gaps = new long[size];
+        for (int i = 0; i < size; i++) {
+            gaps[i] = random.nextLong(1_000, 10_000_000);
+        }
+    }
+
+    @Benchmark
+    public double legacyListMedian() {
+        List<Long> list = new ArrayList<>();
+        for (long gap : gaps) {
+            list.add(gap);
+        }
+        Collections.sort(list);
+        int count = list.size();
+        return count % 2 == 1 ? list.get(count / 2) : (list.get(count / 2 - 1) + list.get(count / 2)) / 2.0;
+    }
+
+    @Benchmark
+    public long histogramMedian() {
+        histogram.reset();
+        for (long gap : gaps) {
+            histogram.record(gap);
+        }
+        return histogram.getValueAtPercentile(50);
+    }
+
+    @Benchmark
+    public long histogramPercentiles() {
+        histogram.reset();
+        for (long gap : gaps) {
+            histogram.record(gap);
+        }
+        return histogram.getValueAtPercentile(50) + histogram.getValueAtPercentile(90) + histogram.getValueAtPercentile(99)
+                + histogram.getValueAtPercentile(99.9) + histogram.getMax();
+    }
+}
@@ -4,39 +4,77 @@ import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The Analyzer class sends instructions, collects and analyzes the data.
  */
 public class Analyser {
     private static final String CLIENT_ID = "analyser";
-    private static final String REQUEST_QOS = "request/qos";
-    private static final String REQUEST_DELAY = "request/delay";
-    private static final String REQUEST_INSTANCE_COUNT = "request/instancecount";
     private static final String READY_TOPIC = "instruction/ready";
+    private static final long ACK_RETRY_MS = 1000;
     private static final String COMPLETE = "complete";
+    private static final String COUNTER_TOPIC = "counter/#";
+    private static final String SHARED_GROUP = "$share/analysers/";
     private static final String RESULT_PATH = "result.csv";
+    private static final String PUBLISHER_RESULT_PATH = "publishers.csv";
+    private static final String BROKER_RESULT_PATH = "broker.csv";
+    private static final String SERIES_RESULT_PATH = "timeseries.csv";
+    private static final String SUMMARY_RESULT_PATH = "summary.csv";
+    private static final String CONSUMER_RESULT_PATH = "consumers.csv";
+    private static final String EXPERIMENT_HEADER = "P2B_QoS,A2B_QoS,Delay_(ms),Instance_Count,Target_Rate_(msg/s),Consumer_Count,Consumer_Mode,Payload_Size_(B),Batch_Size,Session,Store,Topics_per_Publisher,Protocol";
+    private static final int CLOCK_SYNC_ROUNDS = 8;
+    private static final int MAX_PAYLOAD_SIZE = 256 * 1024 * 1024 - 1024; // below the MQTT packet limit, with room for the topic
 
     private final String BROKER_URL;
     private final int[] delays;
     private final int[] pQoss;
     private final int[] sQoss;
     private final int[] instanceCounts;
+    private final double[] rates;
+    private final boolean aggregateRate;
+    private final int[] consumerCounts;
+    private final boolean shared;
+    private final int[] payloadSizes;
+    private final int[] batchSizes;
+    private final int batchBytes;
+    private final int linger;
+    private final String[] sessions;
+    private final String[] stores;
+    private final int[] topicCounts;
+    private final int[] protocols;
+    private final int repetitions;
+    private final int ringCapacity;
+    private final MessageStats merged = new MessageStats();
+    private final BrokerStats brokerStats = new BrokerStats();
+    private final TraceWriter trace;
+    private final MetricsRegistry metrics;
+    private CounterSubscriber[] consumers;
+    private MessageStats stats; // the stats of the experiment that just ran, over all its consumers
 
     private long maxCounter = 0;
-    private List<Long> medianMsgGaps = new ArrayList<>();
-    private long prevMsg = -1;
-    private long prevMsgTimestamp = -1;
+    private long publishNanos = 0;
+    private long[] sentCounts = null; // messages published by publisher id, null if the publishers didn't report them
+    // PUBLISH bytes besides the payloads, as sent and as MQTT 3.1.1 would have sent them, 0 if the publishers didn't report them
+    private long headerBytes = 0;
+    private long headerBytesV311 = 0;
+    // the msg/s of every MQTT 3.1.1 repetition, by its cells, to compare the same repetition over MQTT 5 with
+    private final Map<String, Double> v311Rates = new HashMap<>();
     private CountDownLatch latch = new CountDownLatch(1);
+    // the config version awaiting the publishers' acknowledgement, the latch is replaced before the version
+    private volatile long pendingVersion = 0;
+    private volatile CountDownLatch acknowledged = new CountDownLatch(1);
     private double listeningTimeSec = 0;
-    private int totalMessages = 0;
-    private int outOfOrderCount = 0;
+    private volatile int experimentIndex = 0; // for the live metrics
 
     /**
      * Constructs an Analyzer instance.
@@ -45,27 +83,174 @@ public class Analyser {
      * @param pQoss          the array of pub QoS levels to test
      * @param sQoss          the array of sub QoS levels to test
      * @param instanceCounts the array of instance counts to test
+     * @param rates          the array of open-loop target rates to test in msg/s, in addition to the delays
+     * @param aggregateRate  true if the rates are shared by all instances, false if they apply per instance
+     * @param consumerCounts the array of numbers of subscribers to test, each with its own connection
+     * @param shared         true if the subscribers share one subscription, false if each gets every message
+     * @param payloadSizes   the array of sizes in bytes the publishers pad their payloads to, 0 for no padding
+     * @param batchSizes     the array of numbers of records the publishers pack into one message, 1 for no batching
+     * @param batchBytes     the largest batch payload in bytes, 0 for no limit
+     * @param linger         the time in milliseconds a record may wait for its batch to fill, 0 for no limit
+     * @param sessions       the array of sessions of the publishing connections to test, {@code clean} or {@code persistent}
+     * @param stores         the array of client persistences of the publishing connections to test
+     * @param topicCounts    the array of numbers of distinct topics per publisher to test
+     * @param protocols      the array of MQTT versions of the publishing connections to test, 3 for 3.1.1 or 5
+     * @param repetitions    the number of times each experiment runs
+     * @param ringCapacity   the number of slots of the ingest ring of each subscriber
+     * @param trace          the writer every message received by the first subscriber is traced to, or null to
+     *                       not trace, the other subscribers trace to subdirectories of it
+     * @param metrics        the registry the live metrics of the subscribers are added to
      */
-    public Analyser(String brokerURL, int[] delays, int[] pQoss, int[] sQoss, int[] instanceCounts) {
+    public Analyser(String brokerURL, int[] delays, int[] pQoss, int[] sQoss, int[] instanceCounts, double[] rates,
+                    boolean aggregateRate, int[] consumerCounts, boolean shared, int[] payloadSizes, int[] batchSizes, int batchBytes, int linger,
+                    String[] sessions, String[] stores, int[] topicCounts, int[] protocols, int repetitions, int ringCapacity, TraceWriter trace,
+                    MetricsRegistry metrics) {
         this.BROKER_URL = brokerURL;
         this.delays = delays;
         this.pQoss = pQoss;
         this.sQoss = sQoss;
         this.instanceCounts = instanceCounts;
+        this.rates = rates;
+        this.aggregateRate = aggregateRate;
+        this.consumerCounts = consumerCounts;
+        this.shared = shared;
+        this.payloadSizes = payloadSizes;
+        this.batchSizes = batchSizes;
+        this.batchBytes = batchBytes;
+        this.linger = linger;
+        this.sessions = sessions;
+        this.stores = stores;
+        this.topicCounts = topicCounts;
+        this.protocols = protocols;
+        this.repetitions = repetitions;
+        this.ringCapacity = ringCapacity;
+        this.trace = trace;
+        this.metrics = metrics;
+        metrics.group("analyser").gauge("experiment", "1-based index of the running experiment", () -> experimentIndex);
+    }
+
+    /**
+     * Builds the experiment matrix. Every delay is a closed-loop pacing and every rate an open-loop
+     * pacing with delay 0, so adding rates does not multiply the delay sweep. The protocol varies
+     * fastest, so an MQTT 5 experiment runs right after its MQTT 3.1.1 twin when both are listed.
+     *
+     * @return the experiments in the order they run
+     */
+    private List<Experiment> buildMatrix() {
+        List<Experiment> matrix = new ArrayList<>();
+        for (int subQos : sQoss) {
+            for (int pacing = 0; pacing < delays.length + rates.length; pacing++) {
+                int delay = pacing < delays.length ? delays[pacing] : 0;
+                double rate = pacing < delays.length ? 0 : rates[pacing - delays.length];
+                for (int pubQos : pQoss) {
+                    for (int instanceCount : instanceCounts) {
+                        for (int consumerCount : consumerCounts) {
+                            for (int payloadSize : payloadSizes) {
+                                for (int batchSize : batchSizes) {
+                                    for (String session : sessions) {
+                                        for (String store : stores) {
+                                            for (int topics : topicCounts) {
+                                                for (int protocol : protocols) {
+                                                    matrix.add(new Experiment(pubQos, subQos, delay, instanceCount, rate, aggregateRate,
+                                                            consumerCount, shared, payloadSize, batchSize, session, store, topics, protocol));
+                                                }
+                                            }
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return matrix;
     }
 
     /**
      * Reset the values for each experiment
+     *
+     * @param experimentIndex the 1-based index of the experiment, for the trace
+     * @param clockOffsets    the publisher clock minus the local clock by publisher id
      */
-    private void reset(){
+    private void reset(int experimentIndex, long[] clockOffsets){
+        this.experimentIndex = experimentIndex;
         this.maxCounter = 0;
+        this.publishNanos = 0;
+        this.sentCounts = null;
+        this.headerBytes = 0;
+        this.headerBytesV311 = 0;
         this.latch = new CountDownLatch(1);
-        this.medianMsgGaps = new ArrayList<>();
-        this.prevMsg = -1;
-        this.prevMsgTimestamp = -1;
         this.listeningTimeSec = 0;
-        this.totalMessages = 0;
-        this.outOfOrderCount = 0;
+        for (CounterSubscriber consumer : consumers) {
+            consumer.reset(experimentIndex, clockOffsets);
+        }
+        this.brokerStats.reset();
+    }
+
+    /**
+     * Connects the subscribers for the largest consumer count, each on a connection of its own, so
+     * the control traffic never queues behind the counter messages of a subscriber.
+     *
+     * @param connOpts the connect options of the control client
+     * @throws MqttException if a subscriber cannot connect
+     * @throws IOException   if the trace of a subscriber cannot be opened
+     */
+    private void startConsumers(MqttConnectOptions connOpts) throws MqttException, IOException {
+        consumers = new CounterSubscriber[Arrays.stream(consumerCounts).max().orElse(1)];
+        for (int i = 0; i < consumers.length; i++) {
+            MqttClient consumerClient = new MqttClient(BROKER_URL, CLIENT_ID + "-" + i, new MemoryPersistence());
+            consumerClient.connect(connOpts);
+            // the first subscriber traces to the trace directory itself
+            TraceWriter consumerTrace = trace == null || i == 0 ? trace
+                    : new TraceWriter(trace.getDirectory().resolve("consumer-" + i), TraceWriter.DEFAULT_SEGMENT_SIZE);
+            consumers[i] = new CounterSubscriber(i, consumerClient, ringCapacity, consumerTrace);
+        }
+        for (CounterSubscriber consumer : consumers) {
+            IngestRing ring = consumer.getRing();
+            MetricsRegistry.Group group = metrics.group("consumer", "index", Integer.toString(consumer.getIndex()));
+            group.gauge("received", "MQTT messages received and queued for analysis", ring::getQueued);
+            group.gauge("queue_depth", "MQTT messages waiting in the ingest ring", ring::size);
+            group.gauge("lag_nanos", "Time the oldest queued message has waited for the analysis thread in ns",
+                    () -> ring.getOldestAgeNanos(System.nanoTime()));
+            group.gauge("experiment_max_queue_depth", "Highest ingest ring occupancy in the current experiment", ring::getMaxOccupancy);
+            group.gauge("experiment_dropped", "MQTT messages dropped on a full ingest ring in the current experiment", ring::getDrops);
+            consumer.start();
+        }
+    }
+
+    /**
+     * Disconnects the subscribers and closes the traces of all but the first, whose trace the
+     * caller owns.
+     */
+    private void stopConsumers() {
+        for (int i = 0; i < consumers.length; i++) {
+            try {
+                consumers[i].getClient().disconnect();
+                if (i > 0 && consumers[i].getTrace() != null) {
+                    consumers[i].getTrace().close();
+                }
+            } catch (MqttException | IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Merges the stats of the subscribers of an experiment.
+     *
+     * @param consumerCount the number of subscribers of the experiment
+     * @return the stats of the only subscriber, or their sum
+     */
+    private MessageStats mergeConsumers(int consumerCount) {
+        if (consumerCount == 1) {
+            return consumers[0].getStats();
+        }
+        merged.reset(new long[0]);
+        for (int i = 0; i < consumerCount; i++) {
+            merged.add(consumers[i].getStats());
+        }
+        return merged;
     }
     /**
      * Starts the Analyzer, sends instructions to publishers, collects and analyzes the data.
@@ -81,32 +266,106 @@ public class Analyser {
             client.connect(connOpts);
 
             client.subscribe(COMPLETE, 2, (topic, message) -> {
-                // Get the total number of messages expected
-                this.maxCounter = Long.parseLong(new String(message.getPayload()));
+                // Get the total number of messages expected, how long the publishers took and what each of them sent
+                String[] parts = new String(message.getPayload()).split(";", 2);
+                String[] totals = parts[0].split(",");
+                try {
+                    long maxCounter = Long.parseLong(totals[0]);
+                    long publishNanos = totals.length > 1 ? Long.parseLong(totals[1]) : 0;
+                    long headerBytes = totals.length > 3 ? Long.parseLong(totals[2]) : 0;
+                    long headerBytesV311 = totals.length > 3 ? Long.parseLong(totals[3]) : 0;
+                    long[] sentCounts = parts.length > 1 ? parseSentCounts(parts[1]) : null;
+                    this.maxCounter = maxCounter;
+                    this.publishNanos = publishNanos;
+                    this.headerBytes = headerBytes;
+                    this.headerBytesV311 = headerBytesV311;
+                    this.sentCounts = sentCounts;
+                } catch (NumberFormatException e) {
+                    // throwing would make Paho drop the connection
+                    System.err.println("Ignoring malformed complete message: " + e.getMessage());
+                    return;
+                }
                 // Signal the main thread to continue
                 this.latch.countDown();
             });
 
-            try (PrintWriter writer = new PrintWriter(new FileWriter(RESULT_PATH, true))) {
-                writer.println("P2B_QoS,A2B_QoS,Delay_(ms),Instance_Count,Total_Messages_Received,Expected_Messages_Received,Message_Loss_Rate_(%),Out_of_Order_Message_Rate_(%),Median_Inter_Message_Gap_(ms),msg_rate_(msg/s)");
-                for (int subQos : sQoss) {
-                    for (int delay : delays) {
-                        for (int pubQos : pQoss) {
-                            for (int instanceCount : instanceCounts) {
-                                // Reset the values for each experiment
-                                reset();
-                                // Send instructions to publishers
-                                publishInstructions(client, pubQos, delay, instanceCount);
-                                // finish instruction publishing, send ready signal to publishers to start publishing
-                                sendReadySignal(client);
-                                // Listen and collect data
-                                listenAndCollectData(client, subQos);
-                                // Analyze the data
-                                analyzeData(pubQos, delay, instanceCount, subQos, writer);
-                            }
-                        }
+            client.subscribe(Publisher.ACK_TOPIC, 2, (topic, message) -> {
+                long version;
+                try {
+                    version = Long.parseLong(new String(message.getPayload()));
+                } catch (NumberFormatException e) {
+                    // throwing would make Paho drop the connection
+                    System.err.println("Ignoring malformed acknowledgement: " + e.getMessage());
+                    return;
+                }
+                // a late acknowledgement of an earlier config is ignored
+                if (version == pendingVersion) {
+                    acknowledged.countDown();
+                }
+            });
+
+            ClockSync clockSync = ClockSync.initiator(client);
+
+            startConsumers(connOpts);
+
+            try (PrintWriter writer = new PrintWriter(new FileWriter(RESULT_PATH, true));
+                 PrintWriter publisherWriter = new PrintWriter(new FileWriter(PUBLISHER_RESULT_PATH, true));
+                 PrintWriter brokerWriter = new PrintWriter(new FileWriter(BROKER_RESULT_PATH, true));
+                 PrintWriter seriesWriter = new PrintWriter(new FileWriter(SERIES_RESULT_PATH, true));
+                 PrintWriter summaryWriter = new PrintWriter(new FileWriter(SUMMARY_RESULT_PATH, true));
+                 PrintWriter consumerWriter = new PrintWriter(new FileWriter(CONSUMER_RESULT_PATH, true))) {
+                RepetitionSummary summary = new RepetitionSummary(repetitions, "Steady_Rate_%s_(msg/s)",
+                        "Steady_Latency_p50_%s_(us)", "Steady_Latency_p99_%s_(us)", "msg_rate_%s_(msg/s)", "Message_Loss_Rate_%s_(%%)",
+                        "Steady_MB_rate_%s_(MB/s)", "MB_rate_%s_(MB/s)");
+                writer.println("P2B_QoS,A2B_QoS,Delay_(ms),Instance_Count,Total_Messages_Received,Expected_Messages_Received,Message_Loss_Rate_(%),Out_of_Order_Message_Rate_(%),Median_Inter_Message_Gap_(ms),msg_rate_(msg/s)"
+                        + ",Latency_p50_(us),Latency_p90_(us),Latency_p99_(us),Latency_p99.9_(us),Latency_max_(us)"
+                        + ",Gap_p50_(us),Gap_p90_(us),Gap_p99_(us),Gap_p99.9_(us),Gap_max_(us)"
+                        + ",Ingest_Max_Occupancy,Ingest_Drops"
+                        + ",Lost_Messages,Duplicate_Messages,Reordered_Messages,Reorder_Rate_(%),Max_Reorder_Distance,Sequence_Gaps"
+                        + ",Target_Rate_(msg/s),Offered_Rate_(msg/s),Achieved_Rate_(msg/s)"
+                        + "," + BrokerStats.HEADER
+                        + ",Repetition,Steady_Start_(s),Steady_End_(s),Steady_Messages,Steady_Rate_(msg/s),Steady_Latency_p50_(us),Steady_Latency_p99_(us)"
+                        + ",Consumer_Count,Consumer_Mode"
+                        + ",Payload_Size_(B),Payload_Bytes_Received,MB_rate_(MB/s),Steady_MB_rate_(MB/s)"
+                        + ",Batch_Size,MQTT_Messages_Received,Records_per_Message,MQTT_msg_rate_(msg/s)"
+                        + ",Session,Store"
+                        + ",Topics_per_Publisher,Protocol,Topics_Received,Topic_Messages_min,Topic_Messages_max"
+                        + ",Header_Bytes,Header_Bytes_v3.1.1,Header_Bytes_Saved_(%),msg_rate_vs_v3.1.1_(%)"
+                        + ",Percentile_Window");
+                publisherWriter.println(EXPERIMENT_HEADER + ",Repetition,Publisher_Id,Sent,Received,Expected,Lost,Duplicates,Reordered,Late,Max_Reorder_Distance,Gaps");
+                brokerWriter.println(EXPERIMENT_HEADER + ",Repetition,Elapsed_(s),Metric,Value");
+                seriesWriter.println(EXPERIMENT_HEADER + ",Repetition,Second,Messages,Latency_p50_(us),Latency_p99_(us),Steady");
+                summaryWriter.println(EXPERIMENT_HEADER + ",Repetitions," + summary.header());
+                consumerWriter.println(EXPERIMENT_HEADER + ",Repetition,Consumer,Received,Share_(%),Lost,msg_rate_(msg/s),Steady_Rate_(msg/s)"
+                        + ",Latency_p50_(us),Latency_p99_(us),Ingest_Max_Occupancy,Ingest_Drops");
+                int experimentIndex = 0;
+                for (Experiment experiment : buildMatrix()) {
+                    summary.reset();
+                    for (int repetition = 1; repetition <= repetitions; repetition++) {
+                        // Align the publishers' send timestamps with our clock, node by node
+                        long[] clockOffsets = clockSync.measureOffsets(CLOCK_SYNC_ROUNDS);
+                        // Reset the values for each experiment
+                        reset(++experimentIndex, clockOffsets);
+                        // Send the config to the publishers and wait until they hold it
+                        sendExperiment(client, ExperimentConfig.of(experimentIndex, experiment, batchBytes, linger));
+                        // the publishers acknowledged the config, send ready signal to publishers to start publishing
+                        sendReadySignal(client, experimentIndex);
+                        // Listen and collect data
+                        listenAndCollectData(client, experiment);
+                        // Analyze the data, merged over the consumers and per consumer
+                        stats = mergeConsumers(experiment.consumerCount());
+                        String cells = experimentCells(experiment) + "," + repetition;
+                        analyzeData(experiment, repetition, writer, summary);
+                        analyzeConsumers(experiment, cells, consumerWriter);
+                        analyzePublishers(experiment, cells, publisherWriter);
+                        brokerStats.writeSeries(brokerWriter, cells);
+                        writeSeries(cells, seriesWriter);
                     }
+                    // Summarise the repetitions, from the steady-state windows where there are any
+                    summaryWriter.printf("%s,%d,%s%n", experimentCells(experiment), repetitions, summary.columns());
+                    summaryWriter.flush();
                 }
+                stopConsumers();
                 client.disconnect();
             } catch (Exception e) {
                 e.printStackTrace();
@@ -118,34 +377,38 @@ public class Analyser {
     }
 
     /**
-     * Publishes the instructions to the publishers.
+     * Publishes the experiment config to the publishers as one message, and publishes it again
+     * every {@value #ACK_RETRY_MS} ms until the publishers acknowledge its version, so a pool that
+     * starts late or misses the message never runs an experiment with the previous config.
      *
-     * @param client        the MQTT client
-     * @param qos           the QoS level
-     * @param delay         the delay between messages
-     * @param instanceCount the number of publisher instances
-     * @throws MqttException if an error occurs while publishing
+     * @param client the MQTT client
+     * @param config the config of the next experiment
+     * @throws MqttException        if an error occurs while publishing
+     * @throws InterruptedException if the thread is interrupted while waiting
      */
-    private void publishInstructions(MqttClient client, int qos, int delay, int instanceCount) throws MqttException {
-        MqttMessage insCntMsg = new MqttMessage(Integer.toString(instanceCount).getBytes());
-        insCntMsg.setQos(2);
-        client.publish(REQUEST_INSTANCE_COUNT, insCntMsg);
-        MqttMessage qosMsg = new MqttMessage(Integer.toString(qos).getBytes());
-        qosMsg.setQos(2);
-        client.publish(REQUEST_QOS, qosMsg);
-        MqttMessage delayMsg = new MqttMessage(Integer.toString(delay).getBytes());
-        delayMsg.setQos(2);
-        client.publish(REQUEST_DELAY, delayMsg);
+    private void sendExperiment(MqttClient client, ExperimentConfig config) throws MqttException, InterruptedException {
+        acknowledged = new CountDownLatch(1);
+        pendingVersion = config.version();
+        long start = System.nanoTime();
+        MqttMessage configMsg = new MqttMessage(config.encode().getBytes());
+        configMsg.setQos(2);
+        client.publish(Publisher.REQUEST_EXPERIMENT, configMsg);
+        while (!acknowledged.await(ACK_RETRY_MS, TimeUnit.MILLISECONDS)) {
+            System.out.println("Waiting for the publishers to acknowledge experiment " + config.version() + "...");
+            client.publish(Publisher.REQUEST_EXPERIMENT, configMsg);
+        }
+        System.out.printf("Publishers acknowledged experiment %d in %.1f ms%n", config.version(), (System.nanoTime() - start) / 1e6);
     }
 
     /**
      * Sends the ready signal to the publishers.
      *
-     * @param client the MQTT client
+     * @param client  the MQTT client
+     * @param version the version of the acknowledged config the publishers start with
      * @throws MqttException if an error occurs while publishing
      */
-    private void sendReadySignal(MqttClient client) throws MqttException {
-        MqttMessage readyMsg = new MqttMessage("ready".getBytes());
+    private void sendReadySignal(MqttClient client, long version) throws MqttException {
+        MqttMessage readyMsg = new MqttMessage(Long.toString(version).getBytes());
         readyMsg.setQos(2);
         client.publish(READY_TOPIC, readyMsg);
     }
@@ -153,79 +416,323 @@ public class Analyser {
     /**
      * Listens for messages and collects the data.
      *
-     * @param client the MQTT client
-     * @param subQos the QoS level to subscribe to
+     * @param client     the MQTT client
+     * @param experiment the experiment to run, with the QoS level to subscribe to and the consumers
      * @throws MqttException if an error occurs while subscribing
      * @throws InterruptedException if the thread is interrupted
      */
-    private void listenAndCollectData(MqttClient client, int subQos) throws MqttException, InterruptedException {
+    private void listenAndCollectData(MqttClient client, Experiment experiment) throws MqttException, InterruptedException {
         long startTime = System.currentTimeMillis();
 
-        String topicPath = "counter/#";
-        client.subscribe(topicPath, subQos, (topic, message) -> {
-            String payload = new String(message.getPayload());
-            long currentMsgTimestamp = System.currentTimeMillis();
-            long currentMsg = Long.parseLong(payload);
-            this.totalMessages++;
-            // calculate the out-of-order rate
-            if (this.prevMsg != -1 && currentMsg - prevMsg != 1){
-                this.outOfOrderCount++;
-            }
-            // calculate the median inter-message gap
-            if (this.prevMsg != -1 && currentMsg - prevMsg == 1){
-                long gap = currentMsgTimestamp - this.prevMsgTimestamp;
-                medianMsgGaps.add(gap);
-            }
-            this.prevMsg = currentMsg;
-            this.prevMsgTimestamp = currentMsgTimestamp;
-        });
+        // Every consumer gets all messages, or the broker balances them over the consumers of the group
+        String topicPath = experiment.shared() ? SHARED_GROUP + COUNTER_TOPIC : COUNTER_TOPIC;
+        for (int i = 0; i < experiment.consumerCount(); i++) {
+            consumers[i].subscribe(topicPath, experiment.subQos());
+        }
+        // Sample the broker's own view of the load alongside
+        client.subscribe(BrokerStats.SYS_TOPIC, 0, (topic, message) -> brokerStats.onMessage(topic, message.getPayload(), message.isRetained(), System.nanoTime()));
 
         // wait for all publishers to finish publishing, get the max counter as total expected messages number
         this.latch.await();
         long endTime = System.currentTimeMillis();
         this.listeningTimeSec = (endTime - startTime) / 1000.0;
-        client.unsubscribe(topicPath);
+        client.unsubscribe(BrokerStats.SYS_TOPIC);
+        // wait for the analysis threads to catch up with everything received
+        for (int i = 0; i < experiment.consumerCount(); i++) {
+            consumers[i].unsubscribe(topicPath);
+        }
     }
 
     /**
      * Analyzes the data and writes the results to a CSV file.
      *
-     * @param pubQos        the QoS level of the publisher
-     * @param delay         the delay between messages
-     * @param instanceCount the number of publisher instances
-     * @param subQos        the QoS level of the subscriber
-     * @param writer        the PrintWriter to write the results to
+     * @param experiment the experiment that just ran
+     * @param repetition the 1-based repetition of the experiment
+     * @param writer     the PrintWriter to write the results to
+     * @param summary    the summary of the repetitions of the experiment, the run's values are added to it
      */
-    private void analyzeData(int pubQos, int delay, int instanceCount, int subQos, PrintWriter writer) {
-        long totalExpectedMessages = maxCounter + 1;
+    private void analyzeData(Experiment experiment, int repetition, PrintWriter writer, RepetitionSummary summary) {
+        int totalMessages = stats.getTotalMessages();
+        int outOfOrderCount = stats.getOutOfOrderCount();
+        // Throughput and latency of the steady state only, without warm-up and tail
+        ThroughputSeries series = stats.getSeries();
+        ThroughputSeries.Window window = series.steadyWindow();
+        // every latency and gap percentile comes from the window, from the whole experiment only without one
+        Histogram latencies = window != null ? series.latencies(window) : stats.getLatencies();
+        Histogram msgGaps = window != null ? series.gaps(window) : stats.getMsgGaps();
+        // in fan-out mode every consumer should receive every message
+        long totalExpectedMessages = (maxCounter + 1) * experiment.deliveriesPerMessage();
         double messageLossRate = ((double) (totalExpectedMessages - totalMessages) / totalExpectedMessages) * 100;
         double outOfOrderRate = ((double) outOfOrderCount / totalMessages) * 100;
-        double medianMsgGap = getMedian(this.medianMsgGaps);
+        double medianMsgGap = msgGaps.getValueAtPercentile(50) / 1_000_000.0; // ns to ms
         double msgRate = totalMessages / this.listeningTimeSec;
-        System.out.println("instanceCount: " + instanceCount + ", pubQos(P2B): " + pubQos + ", delay(ms): " + delay + ", subQos(B2A): " + subQos);
+        // bandwidth counts the payloads only, topics and MQTT framing are the same for every size
+        long totalBytes = stats.getTotalBytes();
+        double mbRate = totalBytes / this.listeningTimeSec / 1e6;
+        double bytesPerMessage = totalMessages > 0 ? (double) totalBytes / totalMessages : 0;
+        // with batching the columns above count records, these count the MQTT messages that carried them
+        int totalPublishes = stats.getTotalPublishes();
+        double recordsPerMessage = totalPublishes > 0 ? (double) totalMessages / totalPublishes : 0;
+        System.out.println(experiment.describe());
         // Write results to CSV
-        writer.printf("%d,%d,%d,%d,%d,%d,%.2f,%.2f,%.1f,%.3f%n",
-                pubQos, subQos, delay, instanceCount, totalMessages, totalExpectedMessages, messageLossRate, outOfOrderRate, medianMsgGap,msgRate);
+        int maxOccupancy = 0;
+        long drops = 0;
+        for (int i = 0; i < experiment.consumerCount(); i++) {
+            maxOccupancy = Math.max(maxOccupancy, consumers[i].getRing().getMaxOccupancy());
+            drops += consumers[i].getRing().getDrops();
+        }
+        if (drops > 0) {
+            System.out.println("Analysis fell behind, ingest ring dropped " + drops + " message(s)");
+        }
+        if (stats.getMalformed() > 0) {
+            System.out.println("Skipped " + stats.getMalformed() + " malformed message(s)");
+        }
+        // Sum the per-publisher sequence accounting, only available for binary payloads
+        long lost = 0, duplicates = 0, reordered = 0, maxReorderDistance = 0, gaps = 0;
+        boolean tracked = false;
+        for (int id = 0; id < publisherBound(); id++) {
+            SequenceTracker tracker = stats.getTracker(id);
+            lost += lost(id, tracker, experiment.deliveriesPerMessage());
+            if (tracker != null) {
+                tracked = true;
+                duplicates += tracker.getDuplicates();
+                reordered += tracker.getReordered();
+                maxReorderDistance = Math.max(maxReorderDistance, tracker.getMaxReorderDistance());
+                gaps += tracker.getGaps();
+            }
+        }
+        String sequenceColumns = tracked
+                ? String.format("%d,%d,%d,%.2f,%d,%s", lost, duplicates, reordered, (double) reordered / totalMessages * 100, maxReorderDistance,
+                        balanced(experiment) ? "" : Long.toString(gaps))
+                : ",,,,,";
+        // Offered vs achieved load, the achieved rate is what the publishers actually managed to send
+        String offeredColumns = experiment.isOpenLoop()
+                ? String.format("%.3f,%.3f", experiment.ratePerInstance(), experiment.offeredRate())
+                : ",";
+        String achievedRate = publishNanos > 0 ? String.format("%.3f", maxCounter / (publishNanos / 1e9)) : "";
+        String steadyColumns = ",,,,,";
+        double steadyRate = Double.NaN, steadyP50 = Double.NaN, steadyP99 = Double.NaN, steadyMbRate = Double.NaN;
+        if (window != null) {
+            long steadyMessages = series.count(window);
+            steadyRate = (double) steadyMessages / window.length();
+            steadyMbRate = steadyRate * bytesPerMessage / 1e6;
+            if (latencies.getTotalCount() > 0) {
+                steadyP50 = latencies.getValueAtPercentile(50) / 1000.0;
+                steadyP99 = latencies.getValueAtPercentile(99) / 1000.0;
+            }
+            steadyColumns = String.format("%d,%d,%d,%.3f,%s,%s", window.from(), window.to(), steadyMessages, steadyRate,
+                    micros(latencies, 50), micros(latencies, 99));
+            System.out.printf("Steady state from %ds to %ds: %.3f msg/s, %.3f MB/s%n", window.from(), window.to(), steadyRate, steadyMbRate);
+        } else {
+            System.out.println("No steady state, the experiment is too short");
+        }
+        summary.add(steadyRate, steadyP50, steadyP99, msgRate, messageLossRate, steadyMbRate, mbRate);
+        // Topics as the subscribers saw them, and what the publishers spent on headers against MQTT 3.1.1
+        TopicCounts topics = stats.getTopics();
+        String headerColumns = headerBytesV311 > 0
+                ? String.format("%d,%d,%.2f", headerBytes, headerBytesV311, (double) (headerBytesV311 - headerBytes) / headerBytesV311 * 100)
+                : ",,";
+        // the MQTT 5 run against the same repetition of its MQTT 3.1.1 twin
+        String v311Key = experimentCells(experiment.withProtocol(Publisher.MQTT_V3)) + "," + repetition;
+        if (experiment.protocol() == Publisher.MQTT_V3) {
+            v311Rates.put(v311Key, msgRate);
+        }
+        Double v311Rate = v311Rates.get(v311Key);
+        String relativeRate = v311Rate != null && v311Rate > 0 ? String.format("%.2f", msgRate / v311Rate * 100) : "";
+        if (experiment.protocol() == Publisher.MQTT_V5 && headerBytesV311 > 0) {
+            System.out.printf("MQTT 5 headers: %d bytes, %d bytes as MQTT 3.1.1, %s%% of the v3.1.1 msg/s%n", headerBytes, headerBytesV311,
+                    relativeRate.isEmpty() ? "n/a" : relativeRate);
+        }
+        writer.printf("%d,%d,%d,%d,%d,%d,%.2f,%.2f,%.3f,%.3f,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%d,%d,%s,%s,%s,%s,%d,%s,%d,%s,%d,%d,%.3f,%s,%d,%d,%.2f,%.3f,%s,%s,%d,%s,%d,%d,%d,%s,%s,%s%n",
+                experiment.pubQos(), experiment.subQos(), experiment.delay(), experiment.instanceCount(), totalMessages, totalExpectedMessages, messageLossRate, outOfOrderRate, medianMsgGap,msgRate,
+                micros(latencies, 50), micros(latencies, 90), micros(latencies, 99), micros(latencies, 99.9), micros(latencies, 100),
+                micros(msgGaps, 50), micros(msgGaps, 90), micros(msgGaps, 99), micros(msgGaps, 99.9), micros(msgGaps, 100),
+                maxOccupancy, drops, sequenceColumns, offeredColumns, achievedRate, brokerStats.aggregateColumns(),
+                repetition, steadyColumns, experiment.consumerCount(), experiment.consumerMode(),
+                experiment.payloadSize(), totalBytes, mbRate, Double.isNaN(steadyMbRate) ? "" : String.format("%.3f", steadyMbRate),
+                experiment.batchSize(), totalPublishes, recordsPerMessage, totalPublishes / this.listeningTimeSec,
+                experiment.session(), experiment.store(),
+                experiment.topics(), experiment.protocolName(), topics.size(), topics.min(), topics.max(), headerColumns, relativeRate,
+                window != null ? "steady" : "experiment");
+
+    }
+
+    /**
+     * Writes the delivery rate, loss and latency of every consumer of the experiment to the
+     * per-consumer CSV file.
+     *
+     * @param experiment the experiment that just ran
+     * @param cells      the leading cells identifying the experiment and repetition that just ran
+     * @param writer     the PrintWriter to write the results to
+     */
+    private void analyzeConsumers(Experiment experiment, String cells, PrintWriter writer) {
+        int totalMessages = stats.getTotalMessages();
+        for (int i = 0; i < experiment.consumerCount(); i++) {
+            CounterSubscriber consumer = consumers[i];
+            MessageStats consumerStats = consumer.getStats();
+            int received = consumerStats.getTotalMessages();
+            // a consumer of a shared subscription only gets its share, loss is only defined for the group
+            String lost = "";
+            if (!balanced(experiment)) {
+                long consumerLost = Math.max(0, maxCounter + 1 - received);
+                if (binaryExperiment(consumerStats)) {
+                    consumerLost = 0;
+                    for (int id = 0; id < Math.max(consumerStats.getTrackerBound(), publisherBound()); id++) {
+                        consumerLost += lost(id, consumerStats.getTracker(id), 1);
+                    }
+                }
+                lost = Long.toString(consumerLost);
+            }
+            ThroughputSeries series = consumerStats.getSeries();
+            ThroughputSeries.Window window = series.steadyWindow();
+            Histogram latencies = window != null ? series.latencies(window) : consumerStats.getLatencies();
+            writer.printf("%s,%d,%d,%.2f,%s,%.3f,%s,%s,%s,%d,%d%n", cells, i, received, totalMessages > 0 ? (double) received / totalMessages * 100 : 0,
+                    lost, received / listeningTimeSec, window != null ? String.format("%.3f", (double) series.count(window) / window.length()) : "",
+                    micros(latencies, 50), micros(latencies, 99), consumer.getRing().getMaxOccupancy(), consumer.getRing().getDrops());
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes the sequence accounting of every publisher to the per-publisher CSV file.
+     *
+     * @param experiment the experiment that just ran
+     * @param cells      the leading cells identifying the experiment and repetition that just ran
+     * @param writer     the PrintWriter to write the results to
+     */
+    private void analyzePublishers(Experiment experiment, String cells, PrintWriter writer) {
+        boolean binary = binaryExperiment(stats);
+        int deliveries = experiment.deliveriesPerMessage();
+        for (int id = 0; id < publisherBound(); id++) {
+            SequenceTracker tracker = stats.getTracker(id);
+            long sent = sentCounts != null && id < sentCounts.length ? sentCounts[id] : 0;
+            if (tracker == null) {
+                if (sent > 0 && binary) {
+                    // nothing of this publisher arrived at all
+                    writer.printf("%s,%d,%d,0,0,%d,0,0,0,0,%s%n", cells, id, sent, sent * deliveries, balanced(experiment) ? "" : "0");
+                }
+                continue;
+            }
+            writer.printf("%s,%d,%s,%d,%d,%d,%d,%d,%d,%d,%s%n", cells, id,
+                    sentCounts != null ? Long.toString(sent) : "", tracker.getReceived(), tracker.getExpected() * deliveries, lost(id, tracker, deliveries),
+                    tracker.getDuplicates(), tracker.getReordered(), tracker.getLate(), tracker.getMaxReorderDistance(),
+                    balanced(experiment) ? "" : Long.toString(tracker.getGaps()));
+        }
+        writer.flush();
+    }
+
+    /**
+     * @param experiment an experiment of the matrix
+     * @return true if the broker balances the messages over several consumers, so each consumer's
+     * sequence numbers have holes by design and gaps don't point at losses
+     */
+    private static boolean balanced(Experiment experiment) {
+        return experiment.shared() && experiment.consumerCount() > 1;
+    }
+
+    /**
+     * Writes the per-second throughput and latency of the experiment, with the seconds of the
+     * steady-state window marked.
+     *
+     * @param cells  the leading cells identifying the experiment and repetition that just ran
+     * @param writer the PrintWriter to write the rows to
+     */
+    private void writeSeries(String cells, PrintWriter writer) {
+        ThroughputSeries series = stats.getSeries();
+        ThroughputSeries.Window window = series.steadyWindow();
+        for (int second = 0; second < series.getSeconds(); second++) {
+            Histogram latencies = series.getLatencies(second);
+            writer.printf("%s,%d,%d,%s,%s,%d%n", cells, second, series.getCount(second), micros(latencies, 50), micros(latencies, 99),
+                    window != null && window.contains(second) ? 1 : 0);
+        }
+        writer.flush();
+    }
 
+    /**
+     * @param experiment an experiment of the matrix
+     * @return the cells identifying the experiment, see {@link #EXPERIMENT_HEADER}
+     */
+    private static String experimentCells(Experiment experiment) {
+        return String.format("%d,%d,%d,%d,%s,%d,%s,%d,%d,%s,%s,%d,%s", experiment.pubQos(), experiment.subQos(), experiment.delay(), experiment.instanceCount(),
+                experiment.isOpenLoop() ? String.format("%.3f", experiment.ratePerInstance()) : "", experiment.consumerCount(), experiment.consumerMode(),
+                experiment.payloadSize(), experiment.batchSize(), experiment.session(), experiment.store(), experiment.topics(), experiment.protocolName());
+    }
+
+    /**
+     * @param stats the stats of the experiment that just ran, or of one of its consumers
+     * @return true if any publisher sent binary payloads in the experiment that just ran
+     */
+    private static boolean binaryExperiment(MessageStats stats) {
+        for (int id = 0; id < stats.getTrackerBound(); id++) {
+            if (stats.getTracker(id) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return one more than the largest publisher id that was tracked or reported a count
+     */
+    private int publisherBound() {
+        return Math.max(stats.getTrackerBound(), sentCounts != null ? sentCounts.length : 0);
+    }
+
+    /**
+     * Counts the messages of a publisher that never arrived. When the publishers reported how many
+     * messages each of them sent, that count is used, so losses at the tail of an experiment are
+     * seen as well, otherwise the highest sequence number received stands in for it.
+     *
+     * @param id         the publisher id
+     * @param tracker    the tracker of the publisher, or null if nothing of it arrived
+     * @param deliveries the number of consumers that should receive each message
+     * @return the number of lost deliveries
+     */
+    private long lost(int id, SequenceTracker tracker, int deliveries) {
+        if (sentCounts == null) {
+            return tracker == null ? 0 : Math.max(0, tracker.getExpected() * deliveries - tracker.getUnique());
+        }
+        long sent = id < sentCounts.length ? sentCounts[id] : 0;
+        return Math.max(0, sent * deliveries - (tracker == null ? 0 : tracker.getUnique()));
     }
 
     /**
-     * Calculates the median of a list of long values.
+     * Parses the per-publisher counts of a complete message.
      *
-     * @param list the list of long values
-     * @return the median of the list
+     * @param counts the counts as {@code id:count,...}
+     * @return the counts indexed by publisher id
      */
-    private double getMedian(List<Long> list) {
-        int size = list.size();
-        if (size == 0) {
-            return 0;
+    private static long[] parseSentCounts(String counts) {
+        long[] sent = new long[0];
+        for (String entry : counts.split(",")) {
+            int colon = entry.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            int id = Integer.parseInt(entry.substring(0, colon));
+            if (id < 0) {
+                throw new NumberFormatException("Negative instance id " + id);
+            }
+            if (id >= sent.length) {
+                sent = Arrays.copyOf(sent, Math.max(sent.length * 2, id + 1));
+            }
+            sent[id] += Long.parseLong(entry.substring(colon + 1));
         }
-        Collections.sort(list);
-        if (size % 2 == 1) { // odd
-            return list.get(size / 2);
-        } else { // even
-            return (list.get((size / 2) - 1) + list.get(size / 2)) / 2.0;
+        return sent;
+    }
+
+    /**
+     * Formats a percentile of a nanosecond histogram in microseconds.
+     *
+     * @param histogram  the histogram of the current experiment
+     * @param percentile the percentile in range [0, 100]
+     * @return the value, or an empty string if nothing was recorded
+     */
+    private static String micros(Histogram histogram, double percentile) {
+        if (histogram.getTotalCount() == 0) {
+            return "";
         }
+        return String.format("%.1f", histogram.getValueAtPercentile(percentile) / 1000.0);
     }
 
     /**
@@ -239,6 +746,23 @@ public class Analyser {
         int[] pQoss = {0, 1, 2}; // default values
         int[] sQoss = {0, 1, 2}; // default values
         int[] instanceCounts = {1, 2, 3, 4, 5}; // default values
+        int ringCapacity = 1 << 20; // default ingest ring slots
+        int repetitions = 1; // default each experiment runs once
+        int[] consumerCounts = {1}; // default one subscriber
+        boolean shared = false; // default every subscriber gets every message
+        int[] payloadSizes = {0}; // default unpadded payloads
+        int[] batchSizes = {1}; // default one message per record
+        int batchBytes = 0; // default batches limited by their record count only
+        int linger = 0; // default batches wait until they are full
+        String[] sessions = {Publisher.CLEAN_SESSION}; // default clean sessions
+        String[] stores = {Publisher.MEMORY_STORE}; // default in-memory client persistence
+        int[] topicCounts = {1}; // default one topic per publisher
+        int[] protocols = {Publisher.MQTT_V3}; // default MQTT 3.1.1 publishers
+        double[] rates = {}; // default closed-loop delay pacing only
+        boolean aggregateRate = false; // default rates are per instance
+        boolean embedded = false; // default external broker
+        String traceDirectory = null; // default no message trace
+        int metricsPort = -1; // default no metrics endpoint
         // read command line arguments
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -282,10 +806,248 @@ public class Analyser {
                         return;
                     }
                     break;
+                case "-r":
+                    if (i + 1 < args.length) {
+                        rates = Arrays.stream(args[++i].split(",")).mapToDouble(Double::parseDouble).toArray();
+                    } else {
+                        System.err.println("Missing value for -r");
+                        return;
+                    }
+                    break;
+                case "-A":
+                    aggregateRate = true;
+                    break;
+                case "-e":
+                    embedded = true;
+                    break;
+                case "-q":
+                    if (i + 1 < args.length) {
+                        ringCapacity = Integer.parseInt(args[++i]);
+                    } else {
+                        System.err.println("Missing value for -q");
+                        return;
+                    }
+                    break;
+                case "-n":
+                    if (i + 1 < args.length) {
+                        repetitions = Integer.parseInt(args[++i]);
+                    } else {
+                        System.err.println("Missing value for -n");
+                        return;
+                    }
+                    break;
+                case "-c":
+                    if (i + 1 < args.length) {
+                        consumerCounts = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    } else {
+                        System.err.println("Missing value for -c");
+                        return;
+                    }
+                    break;
+                case "-S":
+                    shared = true;
+                    break;
+                case "-z":
+                    if (i + 1 < args.length) {
+                        payloadSizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    } else {
+                        System.err.println("Missing value for -z");
+                        return;
+                    }
+                    break;
+                case "-k":
+                    if (i + 1 < args.length) {
+                        batchSizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    } else {
+                        System.err.println("Missing value for -k");
+                        return;
+                    }
+                    break;
+                case "-B":
+                    if (i + 1 < args.length) {
+                        batchBytes = Integer.parseInt(args[++i]);
+                    } else {
+                        System.err.println("Missing value for -B");
+                        return;
+                    }
+                    break;
+                case "-L":
+                    if (i + 1 < args.length) {
+                        linger = Integer.parseInt(args[++i]);
+                    } else {
+                        System.err.println("Missing value for -L");
+                        return;
+                    }
+                    break;
+                case "-C":
+                    if (i + 1 < args.length) {
+                        sessions = args[++i].split(",");
+                    } else {
+                        System.err.println("Missing value for -C");
+                        return;
+                    }
+                    break;
+                case "-P":
+                    if (i + 1 < args.length) {
+                        stores = args[++i].split(",");
+                    } else {
+                        System.err.println("Missing value for -P");
+                        return;
+                    }
+                    break;
+                case "-o":
+                    if (i + 1 < args.length) {
+                        topicCounts = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    } else {
+                        System.err.println("Missing value for -o");
+                        return;
+                    }
+                    break;
+                case "-V":
+                    if (i + 1 < args.length) {
+                        protocols = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    } else {
+                        System.err.println("Missing value for -V");
+                        return;
+                    }
+                    break;
+                case "-T":
+                    if (i + 1 < args.length) {
+                        traceDirectory = args[++i];
+                    } else {
+                        System.err.println("Missing value for -T");
+                        return;
+                    }
+                    break;
+                case "-m":
+                    if (i + 1 < args.length) {
+                        metricsPort = Integer.parseInt(args[++i]);
+                    } else {
+                        System.err.println("Missing value for -m");
+                        return;
+                    }
+                    break;
             }
         }
         System.out.println("Analyser started, using broker: " + brokerUrl);
-        new Analyser(brokerUrl, delays, pQoss, sQoss, instanceCounts).start();
+        if (Arrays.stream(consumerCounts).anyMatch(count -> count < 1)) {
+            System.err.println("Each consumer count must be at least 1!");
+            return;
+        }
+        if (Arrays.stream(payloadSizes).anyMatch(size -> size < 0 || size > MAX_PAYLOAD_SIZE)) {
+            System.err.println("Each payload size must be in range [0, " + MAX_PAYLOAD_SIZE + "]!");
+            return;
+        }
+        if (Arrays.stream(batchSizes).anyMatch(size -> size < 1)) {
+            System.err.println("Each batch size must be at least 1!");
+            return;
+        }
+        if (batchBytes < 0 || linger < 0) {
+            System.err.println("Batch bytes and linger must not be negative!");
+            return;
+        }
+        for (int payloadSize : payloadSizes) {
+            for (int batchSize : batchSizes) {
+                int recordLength = Math.max(BinaryPayload.LENGTH, payloadSize);
+                long batchLength = BinaryBatch.HEADER_LENGTH
+                        + (long) BinaryBatch.capacity(batchSize, batchBytes, recordLength) * (BinaryBatch.LENGTH_PREFIX + recordLength);
+                if (batchSize > 1 && batchLength > MAX_PAYLOAD_SIZE) {
+                    System.err.println("A batch of " + batchSize + " records of " + payloadSize + " bytes exceeds the largest payload, set a batch byte limit!");
+                    return;
+                }
+            }
+        }
+        if (Arrays.stream(sessions).anyMatch(session -> !session.equals(Publisher.CLEAN_SESSION) && !session.equals(Publisher.PERSISTENT_SESSION))) {
+            System.err.println("Each session must be " + Publisher.CLEAN_SESSION + " or " + Publisher.PERSISTENT_SESSION + "!");
+            return;
+        }
+        if (Arrays.stream(stores).anyMatch(store -> !Publisher.STORES.contains(store))) {
+            System.err.println("Each store must be one of " + String.join(", ", Publisher.STORES) + "!");
+            return;
+        }
+        if (Arrays.stream(topicCounts).anyMatch(count -> count < 1)) {
+            System.err.println("Each topic count must be at least 1!");
+            return;
+        }
+        if (Arrays.stream(protocols).anyMatch(protocol -> protocol != Publisher.MQTT_V3 && protocol != Publisher.MQTT_V5)) {
+            System.err.println("Each protocol must be " + Publisher.MQTT_V3 + " or " + Publisher.MQTT_V5 + "!");
+            return;
+        }
+        if (Arrays.stream(protocols).anyMatch(protocol -> protocol == Publisher.MQTT_V5)) {
+            // the mapped stores implement the 3.1.1 client's persistence, the embedded broker speaks 3.1.1 only
+            if (Arrays.stream(stores).anyMatch(store -> !store.equals(Publisher.MEMORY_STORE) && !store.equals("file"))) {
+                System.err.println("MQTT 5 supports the " + Publisher.MEMORY_STORE + " and file stores only!");
+                return;
+            }
+            if (embedded) {
+                System.err.println("The embedded broker does not support MQTT 5, use an external broker!");
+                return;
+            }
+        }
+        if (repetitions < 1) {
+            System.err.println("Repetitions must be at least 1!");
+            return;
+        }
+        if (ringCapacity < 1) {
+            System.err.println("Ingest ring capacity must be at least 1!");
+            return;
+        }
+        if (Arrays.stream(rates).anyMatch(rate -> rate <= 0)) {
+            System.err.println("Each target rate must be a positive number!");
+            return;
+        }
+        if (metricsPort < -1 || metricsPort > 65535) {
+            System.err.println("Metrics port must be in range [0, 65535]!");
+            return;
+        }
+        MetricsRegistry metrics = new MetricsRegistry();
+        if (metricsPort >= 0) {
+            try {
+                int port = metrics.startHttp(metricsPort);
+                System.out.println("Serving live metrics on http://127.0.0.1:" + port + MetricsRegistry.PATH);
+            } catch (IOException e) {
+                System.err.println("Could not start the metrics endpoint: " + e.getMessage());
+                return;
+            }
+        }
+        EmbeddedBroker broker = null;
+        if (embedded) {
+            // Serve the experiment from an in-process broker, the publishers connect to it on the same URL
+            try {
+                broker = EmbeddedBroker.startFor(brokerUrl);
+            } catch (IOException e) {
+                System.err.println("Could not start the embedded broker: " + e.getMessage());
+                metrics.close();
+                return;
+            }
+        }
+        TraceWriter trace = null;
+        if (traceDirectory != null) {
+            try {
+                trace = new TraceWriter(Path.of(traceDirectory), TraceWriter.DEFAULT_SEGMENT_SIZE);
+            } catch (IOException e) {
+                System.err.println("Could not open the trace: " + e.getMessage());
+                if (broker != null) {
+                    broker.close();
+                }
+                metrics.close();
+                return;
+            }
+        }
+        new Analyser(brokerUrl, delays, pQoss, sQoss, instanceCounts, rates, aggregateRate, consumerCounts, shared, payloadSizes,
+                batchSizes, batchBytes, linger, sessions, stores, topicCounts, protocols, repetitions, ringCapacity, trace, metrics).start();
+        metrics.close();
+        if (broker != null) {
+            broker.close();
+        }
+        if (trace != null) {
+            try {
+                trace.close();
+                System.out.println("Traced " + trace.getRecords() + " message(s) to " + traceDirectory);
+            } catch (IOException e) {
+                System.err.println("Could not close the trace: " + e.getMessage());
+            }
+        }
         System.out.println("Analyser finished");
     }
 }
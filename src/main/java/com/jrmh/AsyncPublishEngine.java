@@ -0,0 +1,78 @@
+package com.jrmh;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+/**
+ * The AsyncPublishEngine is the {@link PublishEngine} of an MQTT 3.1.1 connection, a single
+ * {@link MqttAsyncClient} whose publishes the window paces.
+ */
+public class AsyncPublishEngine extends PublishEngine {
+    private final MqttAsyncClient client;
+
+    /**
+     * Completion callback shared by every publish, it hands the slot back to the window.
+     */
+    private final IMqttActionListener completion = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            completed((PayloadEncoder) token.getUserContext());
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable exception) {
+            failed((PayloadEncoder) token.getUserContext());
+        }
+    };
+
+    /**
+     * Constructs an AsyncPublishEngine instance.
+     *
+     * @param brokerURL   the URL of the MQTT broker
+     * @param clientId    the client id used to connect
+     * @param windowSize  the maximum number of unacknowledged messages, must be at least 1
+     * @param comms       the executor shared by the clients of a large pool, or null for Paho's own threads
+     * @param persistence the store of the client's in-flight QoS 1 and 2 messages
+     * @param metrics     the live metrics of the publishing instance, recorded by the completion callback
+     * @throws MqttException if the client can not be created
+     */
+    public AsyncPublishEngine(String brokerURL, String clientId, int windowSize, CommsExecutor comms,
+                              MqttClientPersistence persistence, PublishMetrics metrics) throws MqttException {
+        super(windowSize, metrics);
+        this.client = comms == null
+                ? new MqttAsyncClient(brokerURL, clientId, persistence)
+                : new MqttAsyncClient(brokerURL, clientId, persistence, new ScheduledExecutorPingSender(comms), comms);
+    }
+
+    @Override
+    public void connect(boolean cleanSession) throws MqttException {
+        MqttConnectOptions connOpts = new MqttConnectOptions();
+        // Paho rejects publishes beyond its own inflight limit, so it must cover the window
+        connOpts.setMaxInflight(Math.max(1000, getWindowSize()));
+        connOpts.setAutomaticReconnect(true);
+        connOpts.setCleanSession(cleanSession);
+        client.connect(connOpts).waitForCompletion();
+    }
+
+    @Override
+    public void close() throws MqttException {
+        try {
+            // a client whose connect failed has nothing to disconnect, but still holds its persistence
+            if (client.isConnected()) {
+                client.disconnect().waitForCompletion();
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    @Override
+    public void publish(String topic, MqttMessage message, PayloadEncoder slot) throws MqttException {
+        try {
+            sent(slot);
+            client.publish(topic, message, slot, completion);
+        } catch (MqttException e) {
+            refused(slot);
+            throw e;
+        }
+    }
+}
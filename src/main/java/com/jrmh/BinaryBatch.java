@@ -0,0 +1,113 @@
+package com.jrmh;
+
+/**
+ * The BinaryBatch class defines the payload that packs several {@link BinaryPayload} records into
+ * one MQTT message, to measure what client-side batching saves over one PUBLISH per record.
+ * <pre>
+ * offset  size  field
+ *      0     1  magic byte, neither an ASCII digit nor the magic byte of a single record
+ *      1     4  number of records
+ *      5     4  length of the first record
+ *      9     n  the first record, a BinaryPayload padded with zeros to its length
+ *    ...        the length and the bytes of every further record
+ * </pre>
+ * All numbers are big-endian. Every record keeps its own sequence number and send timestamp, so
+ * the Analyser accounts loss, order and latency per record, with the time a record waited for its
+ * batch counted as latency.
+ */
+public final class BinaryBatch {
+    public static final byte MAGIC = (byte) 0xB2;
+    public static final int HEADER_LENGTH = 5;
+    public static final int LENGTH_PREFIX = 4;
+
+    private static final int COUNT_OFFSET = 1;
+
+    private BinaryBatch() {
+    }
+
+    /**
+     * Computes how many records fit in a batch.
+     *
+     * @param maxRecords   the largest number of records per batch
+     * @param maxBytes     the largest batch payload in bytes, 0 for no limit
+     * @param recordLength the length of a record in bytes
+     * @return the number of records per full batch, at least 1 even if one record exceeds {@code maxBytes}
+     */
+    public static int capacity(int maxRecords, int maxBytes, int recordLength) {
+        if (maxBytes <= 0) {
+            return maxRecords;
+        }
+        long fitting = (maxBytes - HEADER_LENGTH) / (LENGTH_PREFIX + (long) recordLength);
+        return (int) Math.max(1, Math.min(maxRecords, fitting));
+    }
+
+    /**
+     * @param records      the number of records
+     * @param recordLength the length of a record in bytes
+     * @return the length of a batch payload holding that many records
+     */
+    public static int length(int records, int recordLength) {
+        return HEADER_LENGTH + records * (LENGTH_PREFIX + recordLength);
+    }
+
+    /**
+     * @param index        the 0-based index of a record
+     * @param recordLength the length of a record in bytes
+     * @return the offset of the record in a batch payload, after its length
+     */
+    public static int recordOffset(int index, int recordLength) {
+        return length(index, recordLength) + LENGTH_PREFIX;
+    }
+
+    /**
+     * Writes the header and the length of every record into a new batch buffer, so only the
+     * records themselves are written per message.
+     *
+     * @param buffer       the buffer of {@link #length(int, int)} bytes
+     * @param records      the number of records
+     * @param recordLength the length of a record in bytes
+     */
+    public static void writeFrame(byte[] buffer, int records, int recordLength) {
+        buffer[0] = MAGIC;
+        BinaryPayload.putInt(buffer, COUNT_OFFSET, records);
+        for (int i = 0; i < records; i++) {
+            BinaryPayload.putInt(buffer, length(i, recordLength), recordLength);
+        }
+    }
+
+    /**
+     * @param payload the received payload
+     * @return true if the payload is a batch of records
+     */
+    public static boolean isBatch(byte[] payload) {
+        return payload.length >= HEADER_LENGTH && payload[0] == MAGIC;
+    }
+
+    /**
+     * @param payload a batch payload
+     * @return the number of records the batch claims to hold
+     */
+    public static int records(byte[] payload) {
+        return BinaryPayload.getInt(payload, COUNT_OFFSET);
+    }
+
+    /**
+     * Reads the length of a record and checks that it lies within the batch.
+     *
+     * @param payload a batch payload
+     * @param offset  the offset of the record's length, {@link #HEADER_LENGTH} for the first record
+     * @return the length of the record, or -1 if the batch ends before the record or the record
+     * is not a {@link BinaryPayload}
+     */
+    public static int recordLength(byte[] payload, int offset) {
+        if (offset + LENGTH_PREFIX > payload.length) {
+            return -1;
+        }
+        int length = BinaryPayload.getInt(payload, offset);
+        int record = offset + LENGTH_PREFIX;
+        if (length < BinaryPayload.LENGTH || length > payload.length - record || payload[record] != BinaryPayload.MAGIC) {
+            return -1;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,151 @@
+package com.jrmh;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * The BinaryPayload class defines the fixed-width binary message format used for latency
+ * measurements, and reads and writes its fields in place without allocating.
+ * <pre>
+ * offset  size  field
+ *      0     1  magic byte, never an ASCII digit so the format can be told apart from the text payload
+ *      1     4  publisher id (instance number)
+ *      5     8  per-publisher sequence number, starting at 0 for every experiment
+ *     13     8  global counter value, the same value the text payload carries
+ *     21     8  send timestamp, System.nanoTime() of the publishing JVM
+ * </pre>
+ * All numbers are big-endian.
+ */
+public final class BinaryPayload {
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final int LENGTH = 29;
+
+    private static final int PUBLISHER_OFFSET = 1;
+    private static final int SEQUENCE_OFFSET = 5;
+    private static final int COUNTER_OFFSET = 13;
+    private static final int SEND_NANOS_OFFSET = 21;
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private BinaryPayload() {
+    }
+
+    /**
+     * Writes a complete record into a buffer of at least {@link #LENGTH} bytes.
+     *
+     * @param buffer      the buffer to write to
+     * @param publisherId the instance number of the publisher
+     * @param sequence    the per-publisher sequence number
+     * @param counter     the global counter value
+     * @param sendNanos   the send timestamp in nanoseconds
+     */
+    public static void write(byte[] buffer, int publisherId, long sequence, long counter, long sendNanos) {
+        write(buffer, 0, publisherId, sequence, counter, sendNanos);
+    }
+
+    /**
+     * Writes a complete record at an offset of a buffer, such as a record of a {@link BinaryBatch}.
+     *
+     * @param buffer      the buffer to write to
+     * @param offset      the offset of the record
+     * @param publisherId the instance number of the publisher
+     * @param sequence    the per-publisher sequence number
+     * @param counter     the global counter value
+     * @param sendNanos   the send timestamp in nanoseconds
+     */
+    public static void write(byte[] buffer, int offset, int publisherId, long sequence, long counter, long sendNanos) {
+        buffer[offset] = MAGIC;
+        INT.set(buffer, offset + PUBLISHER_OFFSET, publisherId);
+        LONG.set(buffer, offset + SEQUENCE_OFFSET, sequence);
+        LONG.set(buffer, offset + COUNTER_OFFSET, counter);
+        LONG.set(buffer, offset + SEND_NANOS_OFFSET, sendNanos);
+    }
+
+    /**
+     * @param payload the received payload
+     * @return true if the payload is a binary record, false if it is the ASCII counter
+     */
+    public static boolean isBinary(byte[] payload) {
+        return payload.length >= LENGTH && payload[0] == MAGIC;
+    }
+
+    public static int publisherId(byte[] payload) {
+        return publisherId(payload, 0);
+    }
+
+    public static long sequence(byte[] payload) {
+        return sequence(payload, 0);
+    }
+
+    public static long counter(byte[] payload) {
+        return counter(payload, 0);
+    }
+
+    public static long sendNanos(byte[] payload) {
+        return sendNanos(payload, 0);
+    }
+
+    // the same fields of a record at an offset, such as a record of a BinaryBatch
+
+    public static int publisherId(byte[] payload, int offset) {
+        return (int) INT.get(payload, offset + PUBLISHER_OFFSET);
+    }
+
+    public static long sequence(byte[] payload, int offset) {
+        return (long) LONG.get(payload, offset + SEQUENCE_OFFSET);
+    }
+
+    public static long counter(byte[] payload, int offset) {
+        return (long) LONG.get(payload, offset + COUNTER_OFFSET);
+    }
+
+    public static long sendNanos(byte[] payload, int offset) {
+        return (long) LONG.get(payload, offset + SEND_NANOS_OFFSET);
+    }
+
+    /**
+     * Reads a big-endian long from any offset of a buffer.
+     *
+     * @param buffer the buffer to read from
+     * @param offset the offset of the first byte
+     * @return the value
+     */
+    static long getLong(byte[] buffer, int offset) {
+        return (long) LONG.get(buffer, offset);
+    }
+
+    /**
+     * Writes a big-endian long at any offset of a buffer.
+     *
+     * @param buffer the buffer to write to
+     * @param offset the offset of the first byte
+     * @param value  the value
+     */
+    static void putLong(byte[] buffer, int offset, long value) {
+        LONG.set(buffer, offset, value);
+    }
+
+    /**
+     * Reads a big-endian int from any offset of a buffer.
+     *
+     * @param buffer the buffer to read from
+     * @param offset the offset of the first byte
+     * @return the value
+     */
+    static int getInt(byte[] buffer, int offset) {
+        return (int) INT.get(buffer, offset);
+    }
+
+    /**
+     * Writes a big-endian int at any offset of a buffer.
+     *
+     * @param buffer the buffer to write to
+     * @param offset the offset of the first byte
+     * @param value  the value
+     */
+    static void putInt(byte[] buffer, int offset, int value) {
+        INT.set(buffer, offset, value);
+    }
+}
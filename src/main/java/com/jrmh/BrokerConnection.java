@@ -0,0 +1,402 @@
+package com.jrmh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The BrokerConnection is one client connection of the {@link EmbeddedBroker}. It decodes MQTT 3.1.1
+ * packets from its socket and runs the QoS 0, 1 and 2 flows in both directions. All reads and writes
+ * happen on the selector thread that owns the connection; other selector threads only append
+ * outgoing packets to its queue, as arrays of buffers that are written with one gathering write.
+ * Only clean sessions are supported, and retained messages and wills are ignored.
+ */
+public class BrokerConnection {
+    private static final int CONNECT = 1;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int PUBREC = 5;
+    private static final int PUBREL = 6;
+    private static final int PUBCOMP = 7;
+    private static final int SUBSCRIBE = 8;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int PINGREQ = 12;
+    private static final int DISCONNECT = 14;
+    private static final int INITIAL_READ_BUFFER = 4096;
+    private static final int MAX_PACKET = 268_435_455; // the largest remaining length MQTT can encode
+    private static final long MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+    private static final int WRITE_BATCH = 64;
+
+    private final EmbeddedBroker broker;
+    private final EmbeddedBroker.IoLoop loop;
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    // owned by the selector thread
+    private ByteBuffer in = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+    private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+    private final BitSet inboundQos2 = new BitSet(1 << 16);
+    private final Set<String> filters = new HashSet<>();
+    private String clientId;
+
+    // shared with the selector threads that route messages to this connection
+    private final Queue<ByteBuffer[]> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final BitSet outboundIds = new BitSet(1 << 16); // guarded by itself
+    private int nextId = 0; // guarded by outboundIds
+
+    /**
+     * Constructs a BrokerConnection instance.
+     *
+     * @param broker  the broker the connection belongs to
+     * @param loop    the selector loop that owns the connection
+     * @param channel the accepted, non-blocking socket channel
+     */
+    BrokerConnection(EmbeddedBroker broker, EmbeddedBroker.IoLoop loop, SocketChannel channel) {
+        this.broker = broker;
+        this.loop = loop;
+        this.channel = channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Reads what the socket has and handles every complete packet. Selector thread only.
+     */
+    void onReadable() {
+        try {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            int needed;
+            while ((needed = handleNextPacket()) == 0 && !closed.get()) {
+                // keep going while complete packets are buffered
+            }
+            in.compact();
+            if (needed > in.capacity()) {
+                // a packet larger than the buffer, grow it to fit
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+        }
+    }
+
+    /**
+     * Handles the packet at the front of the read buffer.
+     *
+     * @return 0 if a packet was handled, otherwise the size the whole packet needs (1 if unknown yet)
+     */
+    private int handleNextPacket() {
+        int start = in.position();
+        if (in.limit() - start < 2) {
+            return 1;
+        }
+        int header = in.get(start) & 0xFF;
+        int length = 0;
+        int index = start + 1;
+        // the remaining length is a variable byte integer of at most 4 bytes, 7 bits each
+        for (int lengthBytes = 0; ; ) {
+            if (lengthBytes == 4) {
+                throw new IllegalStateException("Malformed remaining length");
+            }
+            if (index >= in.limit()) {
+                return 1;
+            }
+            int b = in.get(index++);
+            length += (b & 0x7F) << (7 * lengthBytes++);
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > MAX_PACKET) {
+            throw new IllegalStateException("Packet too large");
+        }
+        int end = index + length;
+        if (end > in.limit()) {
+            return end - start;
+        }
+        int limit = in.limit();
+        in.position(index).limit(end);
+        handlePacket(header);
+        in.limit(limit).position(end);
+        return 0;
+    }
+
+    private void handlePacket(int header) {
+        int type = header >>> 4;
+        if (clientId == null && type != CONNECT) {
+            throw new IllegalStateException("First packet must be CONNECT");
+        }
+        switch (type) {
+            case CONNECT -> handleConnect();
+            case PUBLISH -> handlePublish(header);
+            case PUBACK, PUBCOMP -> releaseId(in.getShort() & 0xFFFF);
+            case PUBREC -> sendAck(0x62, in.getShort() & 0xFFFF); // PUBREL, the id stays in flight until PUBCOMP
+            case PUBREL -> {
+                int id = in.getShort() & 0xFFFF;
+                inboundQos2.clear(id);
+                sendAck(0x70, id); // PUBCOMP
+            }
+            case SUBSCRIBE -> handleSubscribe();
+            case UNSUBSCRIBE -> handleUnsubscribe();
+            case PINGREQ -> enqueue(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{(byte) 0xD0, 0})}, 2);
+            case DISCONNECT -> close();
+            default -> throw new IllegalStateException("Unexpected packet type " + type);
+        }
+    }
+
+    private void handleConnect() {
+        String protocol = readString();
+        int level = in.get();
+        int flags = in.get() & 0xFF;
+        in.getShort(); // keep alive, clients on the loopback don't need to be timed out
+        String id = readString();
+        if ((flags & 0x04) != 0) {
+            readString(); // will topic
+            readString(); // will message
+        }
+        if ((flags & 0x80) != 0) {
+            readString(); // user name
+        }
+        if ((flags & 0x40) != 0) {
+            readString(); // password
+        }
+        boolean supported = (protocol.equals("MQTT") && level == 4) || (protocol.equals("MQIsdp") && level == 3);
+        if (!supported) {
+            enqueue(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{0x20, 2, 0, 1})}, 4); // unacceptable protocol version
+            flush();
+            close();
+            return;
+        }
+        clientId = id.isEmpty() ? broker.generateClientId() : id;
+        broker.connected(this);
+        enqueue(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{0x20, 2, 0, 0})}, 4);
+    }
+
+    private void handlePublish(int header) {
+        int qos = (header >>> 1) & 0x03;
+        if (qos == 3) {
+            throw new IllegalStateException("Invalid QoS");
+        }
+        String topic = readString();
+        int id = qos > 0 ? in.getShort() & 0xFFFF : 0;
+        // the payload is copied once out of the read buffer, and then shared by every subscriber
+        ByteBuffer payload = loop.allocate(in.remaining());
+        payload.put(in).flip();
+        switch (qos) {
+            case 0 -> broker.route(loop, topic, payload, qos);
+            case 1 -> {
+                broker.route(loop, topic, payload, qos);
+                sendAck(0x40, id); // PUBACK
+            }
+            default -> {
+                // deliver once, a redelivery of an id not yet released is a duplicate
+                if (!inboundQos2.get(id)) {
+                    inboundQos2.set(id);
+                    broker.route(loop, topic, payload, qos);
+                }
+                sendAck(0x50, id); // PUBREC
+            }
+        }
+    }
+
+    private void handleSubscribe() {
+        int id = in.getShort() & 0xFFFF;
+        ByteBuffer ack = ByteBuffer.allocate(4 + in.remaining());
+        ack.put((byte) 0x90).put((byte) 0).putShort((short) id);
+        while (in.hasRemaining()) {
+            String filter = readString();
+            int qos = Math.min(in.get() & 0x03, 2);
+            if (TopicTree.isValidFilter(filter)) {
+                broker.getTopics().subscribe(filter, this, qos);
+                filters.add(filter);
+                ack.put((byte) qos);
+            } else {
+                ack.put((byte) 0x80);
+            }
+        }
+        ack.put(1, (byte) (ack.position() - 2)).flip();
+        enqueue(new ByteBuffer[]{ack}, ack.remaining());
+    }
+
+    private void handleUnsubscribe() {
+        int id = in.getShort() & 0xFFFF;
+        while (in.hasRemaining()) {
+            String filter = readString();
+            broker.getTopics().unsubscribe(filter, this);
+            filters.remove(filter);
+        }
+        sendAck(0xB0, id); // UNSUBACK
+    }
+
+    private String readString() {
+        int length = in.getShort() & 0xFFFF;
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private void sendAck(int header, int id) {
+        enqueue(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{(byte) header, 2, (byte) (id >>> 8), (byte) id})}, 4);
+    }
+
+    /**
+     * Queues a message for this subscriber. Called from any selector thread.
+     *
+     * @param prefix  the fixed header and topic of the PUBLISH, shared with the other subscribers
+     * @param qos     the QoS of the delivery
+     * @param payload the payload, shared with the other subscribers
+     * @return true if the message was queued, false if it was dropped because the subscriber is too far behind
+     */
+    boolean deliver(ByteBuffer prefix, int qos, ByteBuffer payload) {
+        long size = prefix.remaining() + payload.remaining() + (qos > 0 ? 2 : 0);
+        if (closed.get() || queuedBytes.get() + size > MAX_QUEUED_BYTES) {
+            return false;
+        }
+        if (qos == 0) {
+            enqueue(new ByteBuffer[]{prefix, payload}, size);
+            return true;
+        }
+        int id = acquireId();
+        if (id == 0) {
+            return false; // every packet id is in flight
+        }
+        ByteBuffer packetId = ByteBuffer.allocate(2).putShort(0, (short) id);
+        enqueue(new ByteBuffer[]{prefix, packetId, payload}, size);
+        return true;
+    }
+
+    private int acquireId() {
+        synchronized (outboundIds) {
+            for (int tries = 0; tries < 0xFFFF; tries++) {
+                nextId = nextId == 0xFFFF ? 1 : nextId + 1;
+                if (!outboundIds.get(nextId)) {
+                    outboundIds.set(nextId);
+                    return nextId;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private void releaseId(int id) {
+        synchronized (outboundIds) {
+            outboundIds.clear(id);
+        }
+    }
+
+    private void enqueue(ByteBuffer[] packet, long size) {
+        outbound.offer(packet);
+        queuedBytes.addAndGet(size);
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.scheduleFlush(this);
+        }
+    }
+
+    /**
+     * Writes as much of the queued output as the socket takes, and waits for OP_WRITE for the rest.
+     * Selector thread only.
+     */
+    void flush() {
+        flushScheduled.set(false);
+        if (closed.get()) {
+            return;
+        }
+        ByteBuffer[] packet;
+        while ((packet = outbound.poll()) != null) {
+            for (ByteBuffer buffer : packet) {
+                writing.add(buffer);
+            }
+        }
+        try {
+            while (!writing.isEmpty()) {
+                int count = 0;
+                long total = 0;
+                for (ByteBuffer buffer : writing) {
+                    batch[count++] = buffer;
+                    total += buffer.remaining();
+                    if (count == WRITE_BATCH) {
+                        break;
+                    }
+                }
+                long written = channel.write(batch, 0, count);
+                queuedBytes.addAndGet(-written);
+                while (!writing.isEmpty() && !writing.peekFirst().hasRemaining()) {
+                    writing.pollFirst();
+                }
+                if (written < total) {
+                    // the socket buffer is full, continue when it drains
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException | RuntimeException e) {
+            close();
+        } finally {
+            Arrays.fill(batch, null);
+        }
+    }
+
+    /**
+     * Closes the connection and drops its subscriptions. Selector thread only, other threads go
+     * through {@link EmbeddedBroker.IoLoop#execute}.
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        for (String filter : filters) {
+            broker.getTopics().unsubscribe(filter, this);
+        }
+        filters.clear();
+        broker.disconnected(this);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        outbound.clear();
+        writing.clear();
+    }
+
+    EmbeddedBroker.IoLoop getLoop() {
+        return loop;
+    }
+}
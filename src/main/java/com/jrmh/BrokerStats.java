@@ -0,0 +1,171 @@
+package com.jrmh;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The BrokerStats class samples the broker's own view of the load from the {@code $SYS/#} topics
+ * during an experiment, so a throughput limit can be attributed to the broker or to the clients.
+ * Every numeric {@code $SYS} value is kept as a time series, and the message counters, dropped
+ * messages, heap and client count are aggregated per experiment.
+ * <p>
+ * Brokers such as Mosquitto publish their {@code $SYS} topics retained every {@code sys_interval}
+ * seconds (10 by default). The retained values delivered on subscribe are old, so they only serve
+ * as the baseline of the counters, and rates are computed between live updates only.
+ */
+public class BrokerStats {
+    public static final String SYS_TOPIC = "$SYS/#";
+    public static final String MESSAGES_RECEIVED = "$SYS/broker/messages/received";
+    public static final String MESSAGES_SENT = "$SYS/broker/messages/sent";
+    public static final String MESSAGES_DROPPED = "$SYS/broker/publish/messages/dropped";
+    public static final String HEAP_CURRENT = "$SYS/broker/heap/current";
+    public static final String CLIENTS_CONNECTED = "$SYS/broker/clients/connected";
+    public static final String HEADER = "Broker_Rx_Rate_Mean_(msg/s),Broker_Rx_Rate_Max_(msg/s),Broker_Tx_Rate_Mean_(msg/s),Broker_Tx_Rate_Max_(msg/s)"
+            + ",Broker_Dropped_Messages,Broker_Heap_Max_(bytes),Broker_Clients_Max";
+
+    private final List<Sample> samples = new ArrayList<>();
+    private final Counter received = new Counter();
+    private final Counter sent = new Counter();
+    private final Counter dropped = new Counter();
+    private double maxHeap = Double.NaN;
+    private double maxClients = Double.NaN;
+    private long startNanos = System.nanoTime();
+
+    private record Sample(long elapsedNanos, String metric, double value) {
+    }
+
+    /**
+     * A cumulative broker counter, with its rate between live updates.
+     */
+    private static final class Counter {
+        double baseline = Double.NaN;
+        double firstValue = Double.NaN;
+        long firstNanos;
+        double lastValue = Double.NaN;
+        long lastNanos;
+        double maxRate = Double.NaN;
+
+        void reset() {
+            baseline = firstValue = lastValue = maxRate = Double.NaN;
+            firstNanos = lastNanos = 0;
+        }
+
+        void record(double value, boolean retained, long nanos) {
+            if (Double.isNaN(baseline)) {
+                baseline = value;
+            }
+            if (retained) {
+                return;
+            }
+            if (Double.isNaN(firstValue)) {
+                firstValue = value;
+                firstNanos = nanos;
+            } else if (nanos > lastNanos) {
+                double rate = (value - lastValue) / ((nanos - lastNanos) / 1e9);
+                maxRate = Double.isNaN(maxRate) ? rate : Math.max(maxRate, rate);
+            }
+            lastValue = value;
+            lastNanos = nanos;
+        }
+
+        double meanRate() {
+            return lastNanos > firstNanos ? (lastValue - firstValue) / ((lastNanos - firstNanos) / 1e9) : Double.NaN;
+        }
+
+        double delta() {
+            double last = Double.isNaN(lastValue) ? baseline : lastValue;
+            return last - baseline;
+        }
+    }
+
+    /**
+     * Clears the samples for a new experiment.
+     */
+    public synchronized void reset() {
+        samples.clear();
+        received.reset();
+        sent.reset();
+        dropped.reset();
+        maxHeap = Double.NaN;
+        maxClients = Double.NaN;
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Records a {@code $SYS} message. Called on the Paho callback thread, at the broker's
+     * {@code sys_interval}, so it is cheap enough to do inline.
+     *
+     * @param topic    the {@code $SYS} topic
+     * @param payload  the value, non-numeric values such as the version are ignored
+     * @param retained true if the broker sent a stored value on subscribe instead of a live update
+     * @param nanos    the System.nanoTime() at arrival
+     */
+    public synchronized void onMessage(String topic, byte[] payload, boolean retained, long nanos) {
+        double value = parseLeadingNumber(payload);
+        if (Double.isNaN(value)) {
+            return;
+        }
+        samples.add(new Sample(nanos - startNanos, topic, value));
+        switch (topic) {
+            case MESSAGES_RECEIVED -> received.record(value, retained, nanos);
+            case MESSAGES_SENT -> sent.record(value, retained, nanos);
+            case MESSAGES_DROPPED -> dropped.record(value, retained, nanos);
+            case HEAP_CURRENT -> maxHeap = Double.isNaN(maxHeap) ? value : Math.max(maxHeap, value);
+            case CLIENTS_CONNECTED -> maxClients = Double.isNaN(maxClients) ? value : Math.max(maxClients, value);
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Formats the per-experiment aggregates as CSV cells, see {@link #HEADER}.
+     *
+     * @return the cells, empty where the broker published nothing
+     */
+    public synchronized String aggregateColumns() {
+        return String.join(",", cell(received.meanRate()), cell(received.maxRate), cell(sent.meanRate()), cell(sent.maxRate),
+                cell(dropped.delta()), cell(maxHeap), cell(maxClients));
+    }
+
+    /**
+     * Writes the time series of the experiment, one row per sample.
+     *
+     * @param writer     the PrintWriter to write the rows to
+     * @param experiment the leading cells identifying the experiment
+     */
+    public synchronized void writeSeries(PrintWriter writer, String experiment) {
+        for (Sample sample : samples) {
+            writer.printf("%s,%.3f,%s,%s%n", experiment, sample.elapsedNanos() / 1e9, sample.metric(), cell(sample.value()));
+        }
+        writer.flush();
+    }
+
+    private static String cell(double value) {
+        if (Double.isNaN(value)) {
+            return "";
+        }
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : String.format("%.3f", value);
+    }
+
+    /**
+     * Parses the number a {@code $SYS} value starts with, e.g. {@code 1234} or {@code 1234 seconds}.
+     *
+     * @param payload the value
+     * @return the number, or NaN if the value doesn't start with one
+     */
+    static double parseLeadingNumber(byte[] payload) {
+        int end = 0;
+        while (end < payload.length && (Character.isDigit(payload[end]) || payload[end] == '.' || (end == 0 && payload[end] == '-'))) {
+            end++;
+        }
+        if (end == 0 || (end == 1 && payload[0] == '-')) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(new String(payload, 0, end));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.jrmh;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ClockSync class estimates the offset between the {@code System.nanoTime()} clocks of the
+ * Analyser and a Publisher pool running in another JVM, so that send timestamps carried in binary
+ * payloads can be compared with receive timestamps.
+ * <p>
+ * It runs an NTP-style exchange over the broker: the Analyser publishes a ping with its send time
+ * {@code t0}, the publisher master answers with its receive time {@code t1} and reply time {@code t2},
+ * and the Analyser stamps the pong with {@code t3}. The offset of the round with the smallest
+ * round trip is used, because it is the one least distorted by queueing in the broker.
+ * <p>
+ * Every node of a multi-process pool answers with the range of publisher ids it runs, so each
+ * publisher's timestamps are corrected with the offset of the host it actually runs on.
+ */
+public class ClockSync {
+    public static final String PING_TOPIC = "clock/ping";
+    public static final String PONG_TOPIC = "clock/pong";
+    private static final long PONG_TIMEOUT_MS = 1000;
+    // how long to wait for further nodes once the first one has answered a ping
+    private static final long PONG_GRACE_MS = 50;
+    private static final int PONG_LENGTH = 32;
+
+    private final MqttClient client;
+    private final LinkedBlockingQueue<long[]> pongs = new LinkedBlockingQueue<>();
+
+    private ClockSync(MqttClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Creates the initiating side of the exchange and subscribes to the pong topic.
+     *
+     * @param client the connected MQTT client of the Analyser
+     * @return the ClockSync instance to measure offsets with
+     * @throws MqttException if an error occurs while subscribing
+     */
+    public static ClockSync initiator(MqttClient client) throws MqttException {
+        ClockSync clockSync = new ClockSync(client);
+        client.subscribe(PONG_TOPIC, 0, (topic, message) -> {
+            long t3 = System.nanoTime();
+            byte[] payload = message.getPayload();
+            if (payload.length >= PONG_LENGTH) {
+                clockSync.pongs.offer(new long[]{
+                        BinaryPayload.getLong(payload, 0),
+                        BinaryPayload.getLong(payload, 8),
+                        BinaryPayload.getLong(payload, 16),
+                        t3,
+                        BinaryPayload.getInt(payload, 24),
+                        BinaryPayload.getInt(payload, 28)});
+            }
+        });
+        return clockSync;
+    }
+
+    /**
+     * Answers pings on behalf of the publisher pool. Replies are sent from a separate thread,
+     * because a blocking publish must not wait inside the Paho callback thread.
+     *
+     * @param client  the connected MQTT client of the publisher master
+     * @param firstId the first publisher id running on this clock
+     * @param lastId  the last publisher id running on this clock
+     * @throws MqttException if an error occurs while subscribing
+     */
+    public static void respondTo(MqttClient client, int firstId, int lastId) throws MqttException {
+        ExecutorService replier = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "clock-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        client.subscribe(PING_TOPIC, 0, (topic, message) -> {
+            long t1 = System.nanoTime();
+            byte[] ping = message.getPayload();
+            if (ping.length < 8) {
+                return;
+            }
+            long t0 = BinaryPayload.getLong(ping, 0);
+            replier.execute(() -> {
+                byte[] pong = new byte[PONG_LENGTH];
+                BinaryPayload.putLong(pong, 0, t0);
+                BinaryPayload.putLong(pong, 8, t1);
+                BinaryPayload.putInt(pong, 24, firstId);
+                BinaryPayload.putInt(pong, 28, lastId);
+                BinaryPayload.putLong(pong, 16, System.nanoTime());
+                try {
+                    client.publish(PONG_TOPIC, pong, 0, false);
+                } catch (MqttException e) {
+                    e.printStackTrace();
+                }
+            });
+        });
+    }
+
+    /**
+     * Measures the clock offset of every node of the publisher pool.
+     *
+     * @param rounds the number of ping/pong rounds
+     * @return the publisher clock minus the local clock in nanoseconds, indexed by publisher id,
+     * publishers whose node never answered get 0
+     * @throws MqttException        if an error occurs while publishing
+     * @throws InterruptedException if the thread is interrupted while waiting for a pong
+     */
+    public long[] measureOffsets(int rounds) throws MqttException, InterruptedException {
+        // best round of every node, keyed by its first publisher id: {roundTrip, offset, firstId, lastId}
+        Map<Long, long[]> best = new HashMap<>();
+        for (int i = 0; i < rounds; i++) {
+            pongs.clear();
+            long t0 = System.nanoTime();
+            byte[] ping = new byte[8];
+            BinaryPayload.putLong(ping, 0, t0);
+            client.publish(PING_TOPIC, ping, 0, false);
+            long timeoutMs = PONG_TIMEOUT_MS;
+            long[] pong;
+            while ((pong = pongs.poll(timeoutMs, TimeUnit.MILLISECONDS)) != null) {
+                // drop late answers to an earlier round
+                if (pong[0] != t0) {
+                    continue;
+                }
+                timeoutMs = PONG_GRACE_MS;
+                long roundTrip = (pong[3] - pong[0]) - (pong[2] - pong[1]);
+                long[] node = best.get(pong[4]);
+                if (node == null || roundTrip < node[0]) {
+                    best.put(pong[4], new long[]{roundTrip, ((pong[1] - pong[0]) + (pong[2] - pong[3])) / 2, pong[4], pong[5]});
+                }
+            }
+        }
+        if (best.isEmpty()) {
+            System.out.println("No clock sync reply from the publishers, assuming a shared clock");
+            return new long[0];
+        }
+        int bound = (int) best.values().stream().mapToLong(node -> node[3]).max().orElse(0) + 1;
+        long[] offsets = new long[Math.max(bound, 0)];
+        for (long[] node : best.values()) {
+            Arrays.fill(offsets, (int) Math.max(0, node[2]), (int) Math.max(node[2], node[3] + 1), node[1]);
+        }
+        if (best.size() > 1) {
+            System.out.println("Clock offsets of " + best.size() + " node(s) measured");
+        }
+        return offsets;
+    }
+}
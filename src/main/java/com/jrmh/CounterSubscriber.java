@@ -0,0 +1,168 @@
+package com.jrmh;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The CounterSubscriber is one of the Analyser's consumers of the {@code counter/#} messages. Each
+ * has its own broker connection, {@link IngestRing}, analysis thread and {@link MessageStats}, so
+ * several of them scale across cores like a real pool of subscribers would, and the Analyser merges
+ * their stats once an experiment is over.
+ * <p>
+ * The counter messages arrive through the client's {@link MqttCallback} rather than a per-filter
+ * listener: Paho 1.2.5 matches listeners against the topic of each message, which never matches a
+ * {@code $share/group/...} filter. The control topics of the Analyser keep their listeners.
+ */
+public class CounterSubscriber implements MqttCallback {
+    private static final int POLL_BATCH = 1024;
+    private static final int IDLE_SPINS = 100;
+    private static final long IDLE_PARK_NANOS = 50_000;
+    // how long the analysis thread may take no message off a non-empty ring before unsubscribe gives up
+    private static final long STALL_MS = 10_000;
+
+    private final int index;
+    private final MqttClient client;
+    private final IngestRing ring;
+    private final MessageStats stats = new MessageStats();
+    private final TraceWriter trace;
+    private final IngestRing.Handler handler;
+    private Thread analysisThread;
+    // stragglers delivered after the unsubscribe must not leak into the next experiment
+    private volatile boolean subscribed = false;
+
+    /**
+     * Constructs a CounterSubscriber instance.
+     *
+     * @param index        the 0-based index of the consumer
+     * @param client       the connected client to subscribe with, owned by the caller
+     * @param ringCapacity the number of slots of the ingest ring between receive and analysis
+     * @param trace        the writer every received message is traced to, or null to not trace
+     */
+    public CounterSubscriber(int index, MqttClient client, int ringCapacity, TraceWriter trace) {
+        this.index = index;
+        this.client = client;
+        this.ring = new IngestRing(ringCapacity);
+        this.trace = trace;
+        // Tracing runs on the analysis thread after the accounting, the receive path is unchanged
+        IngestRing.Handler accounting = trace == null ? stats : (topic, payload, arrivalNanos) -> {
+            stats.onMessage(topic, payload, arrivalNanos);
+            trace.onMessage(topic, payload, arrivalNanos);
+        };
+        // A message that breaks the accounting is counted and skipped, it must not end the analysis thread
+        this.handler = (topic, payload, arrivalNanos) -> {
+            try {
+                accounting.onMessage(topic, payload, arrivalNanos);
+            } catch (RuntimeException e) {
+                if (stats.getMalformed() == 0) {
+                    System.err.println("Consumer " + index + " skipped a malformed message on " + topic + ": " + e);
+                }
+                stats.countMalformed();
+            }
+        };
+    }
+
+    /**
+     * Starts the analysis thread and takes over the client's callback.
+     */
+    public void start() {
+        client.setCallback(this);
+        analysisThread = new Thread(this::runAnalysis, index == 0 ? "analysis" : "analysis-" + index);
+        analysisThread.setDaemon(true);
+        analysisThread.start();
+    }
+
+    /**
+     * Runs the analysis thread, which takes received messages off the ingest ring and accounts
+     * them, so the Paho callback thread never does more than a timestamp and a ring write.
+     */
+    private void runAnalysis() {
+        int idle = 0;
+        while (true) {
+            if (ring.poll(handler, POLL_BATCH) > 0) {
+                idle = 0;
+            } else if (idle < IDLE_SPINS) {
+                idle++;
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Resets the values for a new experiment, while nothing is subscribed.
+     *
+     * @param experiment   the 1-based index of the experiment, for the trace
+     * @param clockOffsets the publisher clock minus the local clock by publisher id
+     */
+    public void reset(int experiment, long[] clockOffsets) {
+        stats.reset(clockOffsets);
+        ring.resetCounters();
+        if (trace != null) {
+            trace.startExperiment(experiment, clockOffsets);
+        }
+    }
+
+    /**
+     * @param filter the topic filter, {@code counter/#} or a shared subscription to it
+     * @param qos    the QoS level to subscribe to
+     * @throws MqttException if an error occurs while subscribing
+     */
+    public void subscribe(String filter, int qos) throws MqttException {
+        subscribed = true;
+        client.subscribe(filter, qos);
+    }
+
+    /**
+     * Unsubscribes and waits for the analysis thread to catch up with everything received.
+     *
+     * @param filter the topic filter subscribed to
+     * @throws MqttException         if an error occurs while unsubscribing
+     * @throws InterruptedException  if the thread is interrupted while waiting
+     * @throws IllegalStateException if the analysis thread died or stalled
+     */
+    public void unsubscribe(String filter) throws MqttException, InterruptedException {
+        client.unsubscribe(filter);
+        subscribed = false;
+        ring.awaitEmpty(analysisThread, STALL_MS);
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        // Only stamp and hand off here, the analysis thread does the accounting
+        if (subscribed) {
+            ring.offer(topic, message.getPayload(), System.nanoTime());
+        }
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        System.err.println("Consumer " + index + " lost its connection: " + cause.getMessage());
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        // publishes of the Analyser need no callback
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public MqttClient getClient() {
+        return client;
+    }
+
+    public IngestRing getRing() {
+        return ring;
+    }
+
+    public MessageStats getStats() {
+        return stats;
+    }
+
+    public TraceWriter getTrace() {
+        return trace;
+    }
+}
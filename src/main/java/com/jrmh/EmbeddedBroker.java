@@ -0,0 +1,441 @@
+package com.jrmh;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The EmbeddedBroker is a minimal MQTT 3.1.1 broker that runs inside the Publisher or Analyser JVM,
+ * so experiments can run without an external broker, for example in a sandboxed CI, and so the
+ * client overhead can be measured against a broker that costs next to nothing.
+ * <p>
+ * It supports CONNECT, SUBSCRIBE and UNSUBSCRIBE with {@code +} and {@code #} wildcards and
+ * {@code $share/group/...} shared subscriptions, and the QoS 0, 1 and 2 flows in both directions,
+ * but only clean sessions: there are no retained messages, wills, persistence or retransmissions,
+ * which the loopback doesn't need. One acceptor thread hands
+ * the connections round-robin to one selector thread per core. A published payload is copied once,
+ * into a direct buffer, and every subscriber gets a view of that buffer, written out together with
+ * its headers by a gathering write, so fan-out costs no copies.
+ * <p>
+ * Like Mosquitto, it publishes its message counters, client count and heap on {@code $SYS/broker/...}
+ * every second, so {@link BrokerStats} works against it as well.
+ */
+public class EmbeddedBroker implements AutoCloseable {
+    private static final int SLAB_SIZE = 1 << 20;
+    private static final long SYS_INTERVAL_MS = 1000;
+
+    private final String host;
+    private final int port;
+    private final IoLoop[] loops;
+    private final TopicTree<BrokerConnection> topics = new TopicTree<>();
+    private final Map<String, BrokerConnection> clients = new ConcurrentHashMap<>();
+    private final AtomicInteger generatedIds = new AtomicInteger();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder messagesDropped = new LongAdder();
+    private ServerSocketChannel server;
+    private Thread acceptor;
+    private volatile boolean running = false;
+
+    /**
+     * Constructs an EmbeddedBroker instance.
+     *
+     * @param host      the address to listen on
+     * @param port      the port to listen on, 0 for any free port
+     * @param ioThreads the number of selector threads, 0 for one per core
+     * @throws IOException if a selector cannot be opened
+     */
+    public EmbeddedBroker(String host, int port, int ioThreads) throws IOException {
+        this.host = host;
+        this.port = port;
+        int threads = ioThreads > 0 ? ioThreads : Runtime.getRuntime().availableProcessors();
+        this.loops = new IoLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new IoLoop(i);
+        }
+    }
+
+    /**
+     * Starts an embedded broker on the host and port of a broker URL such as {@code tcp://localhost:1883}.
+     *
+     * @param brokerUrl the URL the clients connect to
+     * @return the running broker
+     * @throws IOException if the broker cannot listen on the port
+     */
+    public static EmbeddedBroker startFor(String brokerUrl) throws IOException {
+        URI uri = URI.create(brokerUrl);
+        if (!"tcp".equals(uri.getScheme())) {
+            throw new IOException("The embedded broker only speaks plain tcp, not " + brokerUrl);
+        }
+        EmbeddedBroker broker = new EmbeddedBroker(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : 1883, 0);
+        broker.start();
+        return broker;
+    }
+
+    /**
+     * Starts listening and the selector threads.
+     *
+     * @throws IOException if the broker cannot listen on the port
+     */
+    public void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(new InetSocketAddress(host, port), 1024);
+        running = true;
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+        acceptor = new Thread(this::accept, "broker-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread sys = new Thread(this::publishSysLoop, "broker-sys");
+        sys.setDaemon(true);
+        sys.start();
+        System.out.println("Embedded broker listening on " + host + ":" + getPort() + " with " + loops.length + " selector thread(s)");
+    }
+
+    /**
+     * @return the port the broker listens on
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                IoLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.execute(() -> loop.register(channel));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sends a published message to every matching subscription, at the lower of the publish QoS and
+     * the granted QoS. A subscriber with several matching subscriptions gets the message once, at
+     * the highest QoS of them.
+     *
+     * @param loop    the selector loop of the publishing connection
+     * @param topic   the topic of the message
+     * @param payload the payload, which must not be modified afterwards
+     * @param qos     the QoS the message was published with
+     */
+    void route(IoLoop loop, String topic, ByteBuffer payload, int qos) {
+        messagesReceived.increment();
+        deliver(loop, topic, payload, qos);
+    }
+
+    private void deliver(IoLoop loop, String topic, ByteBuffer payload, int qos) {
+        Map<BrokerConnection, Integer> targets = loop.targets;
+        topics.match(topic, (subscriber, granted) -> targets.merge(subscriber, Math.min(granted, qos), Math::max));
+        if (targets.isEmpty()) {
+            return;
+        }
+        // the fixed header and topic are the same for every subscriber at the same QoS
+        ByteBuffer[] prefixes = new ByteBuffer[3];
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        for (Map.Entry<BrokerConnection, Integer> target : targets.entrySet()) {
+            int deliveryQos = target.getValue();
+            ByteBuffer prefix = prefixes[deliveryQos];
+            if (prefix == null) {
+                prefix = prefix(loop, topicBytes, deliveryQos, payload.remaining());
+                prefixes[deliveryQos] = prefix;
+            }
+            if (target.getKey().deliver(prefix.duplicate(), deliveryQos, payload.duplicate())) {
+                messagesSent.increment();
+            } else {
+                messagesDropped.increment();
+            }
+        }
+        targets.clear();
+    }
+
+    private void publishSysLoop() {
+        while (running) {
+            try {
+                Thread.sleep(SYS_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            IoLoop loop = loops[0];
+            loop.execute(() -> publishSys(loop));
+        }
+    }
+
+    /**
+     * Publishes the broker's counters on the {@code $SYS} topics Mosquitto uses. Runs on the given loop's thread.
+     */
+    private void publishSys(IoLoop loop) {
+        Runtime runtime = Runtime.getRuntime();
+        publishSys(loop, BrokerStats.MESSAGES_RECEIVED, getMessagesReceived());
+        publishSys(loop, BrokerStats.MESSAGES_SENT, getMessagesSent());
+        publishSys(loop, BrokerStats.MESSAGES_DROPPED, getMessagesDropped());
+        publishSys(loop, BrokerStats.CLIENTS_CONNECTED, getConnectedClients());
+        publishSys(loop, BrokerStats.HEAP_CURRENT, runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    private void publishSys(IoLoop loop, String topic, long value) {
+        byte[] bytes = Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer payload = loop.allocate(bytes.length);
+        payload.put(bytes).flip();
+        deliver(loop, topic, payload, 0);
+    }
+
+    /**
+     * Encodes the fixed header and topic of a PUBLISH, the packet id of QoS 1 and 2 follows separately.
+     */
+    private static ByteBuffer prefix(IoLoop loop, byte[] topic, int qos, int payloadLength) {
+        int remaining = 2 + topic.length + (qos > 0 ? 2 : 0) + payloadLength;
+        ByteBuffer prefix = loop.allocate(1 + 4 + 2 + topic.length);
+        prefix.put((byte) (0x30 | (qos << 1)));
+        do {
+            int digit = remaining & 0x7F;
+            remaining >>>= 7;
+            prefix.put((byte) (remaining > 0 ? digit | 0x80 : digit));
+        } while (remaining > 0);
+        prefix.putShort((short) topic.length).put(topic).flip();
+        return prefix;
+    }
+
+    /**
+     * Registers a connection under its client id, taking over from an older connection with the same id.
+     */
+    void connected(BrokerConnection connection) {
+        BrokerConnection previous = clients.put(connection.getClientId(), connection);
+        if (previous != null && previous != connection) {
+            previous.getLoop().execute(previous::close);
+        }
+    }
+
+    void disconnected(BrokerConnection connection) {
+        if (connection.getClientId() != null) {
+            clients.remove(connection.getClientId(), connection);
+        }
+    }
+
+    String generateClientId() {
+        return "embedded-" + generatedIds.incrementAndGet();
+    }
+
+    TopicTree<BrokerConnection> getTopics() {
+        return topics;
+    }
+
+    public int getConnectedClients() {
+        return clients.size();
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    public long getMessagesDropped() {
+        return messagesDropped.sum();
+    }
+
+    /**
+     * Stops accepting, closes every connection and stops the selector threads.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (IoLoop loop : loops) {
+            loop.execute(loop::shutdown);
+        }
+        System.out.println("Embedded broker stopped, messages received: " + getMessagesReceived()
+                + ", sent: " + getMessagesSent() + ", dropped: " + getMessagesDropped());
+    }
+
+    /**
+     * One selector thread and the connections it owns.
+     */
+    final class IoLoop {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Queue<BrokerConnection> flushes = new ConcurrentLinkedQueue<>();
+        // scratch space of route(), only used on this thread
+        private final Map<BrokerConnection, Integer> targets = new IdentityHashMap<>();
+        private ByteBuffer slab = ByteBuffer.allocateDirect(0);
+
+        IoLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this::run, "broker-io-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Runs a task on this loop's thread.
+         */
+        void execute(Runnable task) {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks this loop to flush a connection's output, the caller may be on any thread.
+         */
+        void scheduleFlush(BrokerConnection connection) {
+            flushes.offer(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Carves a buffer out of a direct slab, so payloads are written to the sockets without the
+         * extra copy a heap buffer costs. A slab is freed once none of its buffers is referenced.
+         * This loop's thread only.
+         */
+        ByteBuffer allocate(int size) {
+            if (size > SLAB_SIZE / 4) {
+                return ByteBuffer.allocateDirect(size);
+            }
+            if (slab.remaining() < size) {
+                slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            }
+            ByteBuffer buffer = slab.slice(slab.position(), size);
+            slab.position(slab.position() + size);
+            return buffer;
+        }
+
+        private void register(SocketChannel channel) {
+            BrokerConnection connection = new BrokerConnection(EmbeddedBroker.this, this, channel);
+            try {
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (ClosedChannelException e) {
+                connection.close();
+            }
+        }
+
+        private void run() {
+            // runs until shutdown() closes the selector
+            while (true) {
+                try {
+                    selector.select(key -> {
+                        BrokerConnection connection = (BrokerConnection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    });
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    BrokerConnection connection;
+                    while ((connection = flushes.poll()) != null) {
+                        connection.flush();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (selector.isOpen()) {
+                        e.printStackTrace();
+                    }
+                }
+                if (!selector.isOpen()) {
+                    return;
+                }
+            }
+        }
+
+        private void shutdown() {
+            for (SelectionKey key : selector.keys()) {
+                ((BrokerConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The main method that runs a standalone embedded broker until the JVM is stopped.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        String host = "localhost"; // default loopback only
+        int port = 1883; // default MQTT port
+        int ioThreads = 0; // default one selector thread per core
+        // read command line arguments
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-h":
+                    if (i + 1 < args.length) {
+                        host = args[++i];
+                    } else {
+                        System.err.println("Missing value for -h");
+                        return;
+                    }
+                    break;
+                case "-p":
+                    if (i + 1 < args.length) {
+                        port = Integer.parseInt(args[++i]);
+                    } else {
+                        System.err.println("Missing value for -p");
+                        return;
+                    }
+                    break;
+                case "-t":
+                    if (i + 1 < args.length) {
+                        ioThreads = Integer.parseInt(args[++i]);
+                    } else {
+                        System.err.println("Missing value for -t");
+                        return;
+                    }
+                    break;
+            }
+        }
+        if (ioThreads < 0) {
+            System.err.println("Number of selector threads must be a non-negative integer!");
+            return;
+        }
+        try {
+            EmbeddedBroker broker = new EmbeddedBroker(host, port, ioThreads);
+            broker.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(broker::close));
+            Thread.currentThread().join();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
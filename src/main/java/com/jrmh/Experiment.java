@@ -0,0 +1,91 @@
+package com.jrmh;
+
+/**
+ * The Experiment record describes one cell of the Analyser's experiment matrix.
+ *
+ * @param pubQos        the QoS level used by the publishers
+ * @param subQos        the QoS level used by the Analyser's subscription
+ * @param delay         the delay between messages in milliseconds, used for closed-loop pacing
+ * @param instanceCount the number of publisher instances
+ * @param rate          the target rate in msg/s for open-loop pacing, 0 for closed-loop delay pacing
+ * @param aggregateRate true if {@code rate} is shared by all instances, false if it applies to each instance
+ * @param consumerCount the number of the Analyser's subscribers to {@code counter/#}
+ * @param shared        true if the subscribers share one subscription, false if each gets every message
+ * @param payloadSize   the size the publishers pad their payloads to in bytes, 0 for no padding
+ * @param batchSize     the number of records the publishers pack into one message, 1 for no batching
+ * @param session       the session of the publishing connections, {@code clean} or {@code persistent}
+ * @param store         the client persistence of the publishing connections, one of {@link Publisher#STORES}
+ * @param topics        the number of distinct topics each publisher spreads its messages over
+ * @param protocol      the MQTT version of the publishing connections, {@link Publisher#MQTT_V3} or {@link Publisher#MQTT_V5}
+ */
+public record Experiment(int pubQos, int subQos, int delay, int instanceCount, double rate, boolean aggregateRate,
+                         int consumerCount, boolean shared, int payloadSize, int batchSize, String session, String store,
+                         int topics, int protocol) {
+
+    /**
+     * @return true if the publishers send on a fixed schedule instead of sleeping between messages
+     */
+    public boolean isOpenLoop() {
+        return rate > 0;
+    }
+
+    /**
+     * @return the target rate of each publisher instance in msg/s, 0 for closed-loop pacing
+     */
+    public double ratePerInstance() {
+        return aggregateRate ? rate / instanceCount : rate;
+    }
+
+    /**
+     * @return the total rate offered by all publishers in msg/s, 0 for closed-loop pacing
+     */
+    public double offeredRate() {
+        return ratePerInstance() * instanceCount;
+    }
+
+    /**
+     * @return the number of times the broker should deliver each message to the Analyser
+     */
+    public int deliveriesPerMessage() {
+        return shared ? 1 : consumerCount;
+    }
+
+    /**
+     * @return the consumer mode as written to the CSV files
+     */
+    public String consumerMode() {
+        return shared ? "shared" : "fanout";
+    }
+
+    /**
+     * @param protocol the MQTT version of the publishing connections
+     * @return the same experiment over another protocol
+     */
+    public Experiment withProtocol(int protocol) {
+        return new Experiment(pubQos, subQos, delay, instanceCount, rate, aggregateRate, consumerCount, shared, payloadSize,
+                batchSize, session, store, topics, protocol);
+    }
+
+    /**
+     * @return the protocol version as written to the CSV files and the console
+     */
+    public String protocolName() {
+        return protocol == Publisher.MQTT_V5 ? "5" : "3.1.1";
+    }
+
+    /**
+     * @return a one-line description for the console
+     */
+    public String describe() {
+        String pacing = isOpenLoop()
+                ? ", rate(msg/s): " + ratePerInstance() + " per instance"
+                : ", delay(ms): " + delay;
+        String consumers = consumerCount > 1 ? ", consumers: " + consumerCount + " " + consumerMode() : "";
+        String payload = payloadSize > 0 ? ", payloadSize(B): " + payloadSize : "";
+        String batch = batchSize > 1 ? ", batchSize: " + batchSize : "";
+        String persistence = ", session: " + session + ", store: " + store;
+        String topicCount = topics > 1 ? ", topics: " + topics + " per publisher" : "";
+        return "instanceCount: " + instanceCount + ", pubQos(P2B): " + pubQos + pacing + ", subQos(B2A): " + subQos + consumers + payload + batch
+                + persistence + topicCount + ", protocol: MQTT " + protocolName();
+    }
+}
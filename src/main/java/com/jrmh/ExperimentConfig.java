@@ -0,0 +1,96 @@
+package com.jrmh;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The ExperimentConfig record is what the publishers need to know about one experiment, sent by
+ * the Analyser as a single QoS 2 message on {@code request/experiment}. Sent as one message it can
+ * never be applied half, and a publisher pool holds it in one volatile field, so a worker reads
+ * every setting of the same experiment at once.
+ * <p>
+ * The payload is a list of {@code key=value} pairs separated by commas, e.g.
+ * {@code v=3,qos=1,delay=0,instances=5,rate=0.0,payload=0,batch=1,batchBytes=0,linger=0,session=clean,store=memory,topics=1,protocol=3}.
+ * Pairs missing from a payload take their defaults, and unknown keys are ignored.
+ *
+ * @param version       the number of the descriptor, which the publishers acknowledge, the 1-based
+ *                      index of the experiment in the Analyser's run
+ * @param qos           the QoS level used by the publishers
+ * @param delay         the delay between messages in milliseconds, used for closed-loop pacing
+ * @param instanceCount the number of publisher instances that publish
+ * @param rate          the target rate of each instance in msg/s for open-loop pacing, 0 for closed-loop delay pacing
+ * @param payloadSize   the size the publishers pad their payloads to in bytes, 0 for no padding
+ * @param batchSize     the number of records packed into one message, 1 for no batching
+ * @param batchBytes    the largest batch payload in bytes, 0 for no limit
+ * @param linger        the time in milliseconds a record may wait for its batch to fill, 0 for no limit
+ * @param session       the session of the publishing connections, {@code clean} or {@code persistent}
+ * @param store         the client persistence of the publishing connections, one of {@link Publisher#STORES}
+ * @param topics        the number of distinct topics each publisher spreads its messages over
+ * @param protocol      the MQTT version of the publishing connections, {@link Publisher#MQTT_V3} or {@link Publisher#MQTT_V5}
+ */
+public record ExperimentConfig(long version, int qos, int delay, int instanceCount, double rate, int payloadSize,
+                               int batchSize, int batchBytes, int linger, String session, String store, int topics,
+                               int protocol) {
+    /**
+     * The config of a pool that has not been sent one yet.
+     */
+    public static final ExperimentConfig NONE = new ExperimentConfig(0, 0, 0, 0, 0, 0, 1, 0, 0,
+            Publisher.CLEAN_SESSION, Publisher.MEMORY_STORE, 1, Publisher.MQTT_V3);
+
+    /**
+     * Builds the config of a cell of the Analyser's matrix.
+     *
+     * @param version    the number of the descriptor
+     * @param experiment the experiment
+     * @param batchBytes the largest batch payload in bytes, 0 for no limit
+     * @param linger     the time in milliseconds a record may wait for its batch to fill, 0 for no limit
+     * @return the config
+     */
+    public static ExperimentConfig of(long version, Experiment experiment, int batchBytes, int linger) {
+        return new ExperimentConfig(version, experiment.pubQos(), experiment.delay(), experiment.instanceCount(),
+                experiment.ratePerInstance(), experiment.payloadSize(), experiment.batchSize(), batchBytes, linger,
+                experiment.session(), experiment.store(), experiment.topics(), experiment.protocol());
+    }
+
+    /**
+     * @return the payload of the {@code request/experiment} message
+     */
+    public String encode() {
+        return "v=" + version + ",qos=" + qos + ",delay=" + delay + ",instances=" + instanceCount + ",rate=" + rate
+                + ",payload=" + payloadSize + ",batch=" + batchSize + ",batchBytes=" + batchBytes + ",linger=" + linger
+                + ",session=" + session + ",store=" + store + ",topics=" + topics + ",protocol=" + protocol;
+    }
+
+    /**
+     * Parses the payload of a {@code request/experiment} message.
+     *
+     * @param payload the payload, as written by {@link #encode()}
+     * @return the config
+     * @throws IllegalArgumentException if the payload has no version or a number that doesn't parse
+     */
+    public static ExperimentConfig decode(String payload) {
+        Map<String, String> fields = new HashMap<>();
+        for (String pair : payload.split(",")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                fields.put(pair.substring(0, separator).trim(), pair.substring(separator + 1).trim());
+            }
+        }
+        if (!fields.containsKey("v")) {
+            throw new IllegalArgumentException("Experiment config without a version: " + payload);
+        }
+        return new ExperimentConfig(Long.parseLong(fields.get("v")),
+                Integer.parseInt(fields.getOrDefault("qos", Integer.toString(NONE.qos))),
+                Integer.parseInt(fields.getOrDefault("delay", Integer.toString(NONE.delay))),
+                Integer.parseInt(fields.getOrDefault("instances", Integer.toString(NONE.instanceCount))),
+                Double.parseDouble(fields.getOrDefault("rate", Double.toString(NONE.rate))),
+                Integer.parseInt(fields.getOrDefault("payload", Integer.toString(NONE.payloadSize))),
+                Integer.parseInt(fields.getOrDefault("batch", Integer.toString(NONE.batchSize))),
+                Integer.parseInt(fields.getOrDefault("batchBytes", Integer.toString(NONE.batchBytes))),
+                Integer.parseInt(fields.getOrDefault("linger", Integer.toString(NONE.linger))),
+                fields.getOrDefault("session", NONE.session),
+                fields.getOrDefault("store", NONE.store),
+                Integer.parseInt(fields.getOrDefault("topics", Integer.toString(NONE.topics))),
+                Integer.parseInt(fields.getOrDefault("protocol", Integer.toString(NONE.protocol))));
+    }
+}
@@ -0,0 +1,203 @@
+package com.jrmh;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The IngestRing is a preallocated, lock-free single-producer/single-consumer ring that moves
+ * received messages from the Paho callback thread to the analysis thread. The producer only
+ * stores references and an arrival timestamp, it never blocks: when the ring is full the message
+ * is dropped and counted, so a slow analysis thread shows up as drops instead of as back pressure
+ * on the broker connection.
+ */
+public class IngestRing {
+    /**
+     * Receives the messages taken from the ring on the consumer thread.
+     */
+    public interface Handler {
+        /**
+         * @param topic        the topic the message was received on
+         * @param payload      the raw payload bytes
+         * @param arrivalNanos the System.nanoTime() at which the callback received the message
+         */
+        void onMessage(String topic, byte[] payload, long arrivalNanos);
+    }
+
+    private final int mask;
+    private final String[] topics;
+    private final byte[][] payloads;
+    private final long[] arrivalNanos;
+
+    // head is only written by the consumer, tail only by the producer
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+    private long cachedHead = 0; // producer's view of head, refreshed every few slots or when the ring looks full
+
+    private final AtomicLong drops = new AtomicLong(0);
+    private volatile int maxOccupancy = 0;
+
+    /**
+     * Constructs an IngestRing instance.
+     *
+     * @param capacity the number of slots, rounded up to a power of two
+     */
+    public IngestRing(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Ring capacity must be in range [1, 2^30]");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.topics = new String[size];
+        this.payloads = new byte[size][];
+        this.arrivalNanos = new long[size];
+    }
+
+    /**
+     * Publishes a message to the ring. Must only be called from the single producer thread.
+     *
+     * @param topic   the topic the message was received on
+     * @param payload the raw payload bytes
+     * @param nanos   the arrival timestamp
+     * @return true if the message was queued, false if it was dropped because the ring was full
+     */
+    public boolean offer(String topic, byte[] payload, long nanos) {
+        long t = tail.get();
+        if ((t & 63) == 0 || t - cachedHead > mask) {
+            cachedHead = head.getAcquire();
+            if (t - cachedHead > mask) {
+                drops.incrementAndGet();
+                return false;
+            }
+        }
+        int index = (int) t & mask;
+        topics[index] = topic;
+        payloads[index] = payload;
+        arrivalNanos[index] = nanos;
+        tail.setRelease(t + 1);
+        int occupancy = (int) (t + 1 - cachedHead);
+        if (occupancy > maxOccupancy) {
+            maxOccupancy = occupancy;
+        }
+        return true;
+    }
+
+    /**
+     * Hands up to {@code limit} queued messages to a handler. Must only be called from the single
+     * consumer thread. The slots are released after the handler returns, so once the ring reads as
+     * empty every message taken from it has been fully processed.
+     *
+     * @param handler the handler receiving the messages
+     * @param limit   the maximum number of messages to take
+     * @return the number of messages handled
+     */
+    public int poll(Handler handler, int limit) {
+        long h = head.get();
+        long available = tail.getAcquire() - h;
+        int count = (int) Math.min(available, limit);
+        for (int i = 0; i < count; i++) {
+            int index = (int) (h + i) & mask;
+            handler.onMessage(topics[index], payloads[index], arrivalNanos[index]);
+            // let the payload be collected as soon as it has been analysed
+            topics[index] = null;
+            payloads[index] = null;
+        }
+        if (count > 0) {
+            head.setRelease(h + count);
+        }
+        return count;
+    }
+
+    /**
+     * Waits until the consumer has processed every queued message. Gives up when the consumer
+     * thread has died or has not taken a single message for {@code stallMillis}, so a broken
+     * analysis thread fails the experiment instead of hanging it.
+     *
+     * @param consumer    the consumer thread
+     * @param stallMillis how long the consumer may make no progress while messages are queued
+     * @throws InterruptedException  if the thread is interrupted while waiting
+     * @throws IllegalStateException if the consumer died or stalled with messages queued
+     */
+    public void awaitEmpty(Thread consumer, long stallMillis) throws InterruptedException {
+        long lastHead = head.getAcquire();
+        long lastProgress = System.nanoTime();
+        while (true) {
+            long h = head.getAcquire();
+            if (h == tail.getAcquire()) {
+                return;
+            }
+            if (!consumer.isAlive()) {
+                throw new IllegalStateException(consumer.getName() + " died with " + size() + " message(s) queued");
+            }
+            long now = System.nanoTime();
+            if (h != lastHead) {
+                lastHead = h;
+                lastProgress = now;
+            } else if (now - lastProgress > stallMillis * 1_000_000L) {
+                throw new IllegalStateException(consumer.getName() + " made no progress for " + stallMillis
+                        + " ms with " + size() + " message(s) queued");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Clears the occupancy and drop counters, only safe while no producer is running.
+     */
+    public void resetCounters() {
+        drops.set(0);
+        maxOccupancy = 0;
+    }
+
+    /**
+     * @return the number of messages currently queued
+     */
+    public int size() {
+        return (int) (tail.getAcquire() - head.getAcquire());
+    }
+
+    /**
+     * @return the number of messages queued since the ring was created, never reset
+     */
+    public long getQueued() {
+        return tail.getAcquire();
+    }
+
+    /**
+     * Reads how long the oldest queued message has been waiting for the consumer. Safe to call
+     * from any thread: the slot at the head was written before the tail moved past it.
+     *
+     * @param nowNanos the current System.nanoTime()
+     * @return the age of the oldest queued message in nanoseconds, 0 if the ring is empty
+     */
+    public long getOldestAgeNanos(long nowNanos) {
+        long h = head.getAcquire();
+        if (tail.getAcquire() == h) {
+            return 0;
+        }
+        return Math.max(0, nowNanos - arrivalNanos[(int) h & mask]);
+    }
+
+    /**
+     * @return the number of slots
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the highest number of queued messages seen by the producer since the last reset,
+     * accurate to the few slots between two refreshes of its view of the consumer
+     */
+    public int getMaxOccupancy() {
+        return maxOccupancy;
+    }
+
+    /**
+     * @return the number of messages dropped because the ring was full since the last reset
+     */
+    public long getDrops() {
+        return drops.get();
+    }
+}
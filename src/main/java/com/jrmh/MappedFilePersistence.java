@@ -0,0 +1,465 @@
+package com.jrmh;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * The MappedFilePersistence is a {@link MqttClientPersistence} that appends every put and remove
+ * to a memory-mapped log file instead of writing one file per message like Paho's
+ * {@code MqttDefaultFilePersistence}. A write is a few stores into the page cache, and the log is
+ * synced to disk in batches: after every {@code syncEvery} writes and every
+ * {@code syncIntervalMillis}, so at most that much of the session is lost if the machine crashes.
+ * A crash of the JVM alone loses nothing, the page cache outlives it.
+ * <p>
+ * Every entry is checksummed with CRC-32C:
+ * <pre>
+ * offset  0: int    length of the entry after the checksum
+ * offset  4: int    CRC-32C of the entry after the checksum
+ * offset  8: byte   type, 1 for put, 2 for remove
+ * offset  9: short  key length
+ * offset 11: bytes  key, then the header and payload bytes of a put
+ * </pre>
+ * The log is replayed when the persistence is opened, up to the first entry that is incomplete or
+ * fails its checksum. Only the keys of the in-flight messages are live, so when a segment is full
+ * the live entries are carried forward into a fresh segment and the old one is deleted, which keeps
+ * the log at the size of the client's in-flight window.
+ */
+public class MappedFilePersistence implements MqttClientPersistence {
+    public static final int DEFAULT_SYNC_EVERY = 256;
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10;
+    public static final long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int CHECKSUM_OFFSET = 4;
+    private static final int TYPE_OFFSET = 8;
+    private static final int KEY_LENGTH_OFFSET = 9;
+    private static final int KEY_OFFSET = 11;
+    // one daemon thread syncs the logs of every client of the JVM, so a large pool doesn't get a thread per client
+    private static final ScheduledExecutorService SYNCER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "persistence-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path baseDirectory;
+    private final int syncEvery;
+    private final long syncIntervalMillis;
+    private final long segmentSize;
+    private final CRC32C checksum = new CRC32C();
+    // the offset of the latest put of every live key in the current segment
+    private final Map<String, Integer> index = new HashMap<>();
+
+    private Path directory;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private int segmentIndex = 0;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int syncedPosition = 0;
+    private int unsynced = 0;
+    private ScheduledFuture<?> syncTask;
+
+    /**
+     * Constructs a MappedFilePersistence instance with the default sync batching.
+     *
+     * @param baseDirectory the directory the log of every client is kept in, in a subdirectory per client
+     */
+    public MappedFilePersistence(Path baseDirectory) {
+        this(baseDirectory, DEFAULT_SYNC_EVERY, DEFAULT_SYNC_INTERVAL_MILLIS, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructs a MappedFilePersistence instance.
+     *
+     * @param baseDirectory      the directory the log of every client is kept in, in a subdirectory per client
+     * @param syncEvery          the number of writes after which the log is synced, 1 to sync every write,
+     *                           0 to only sync on the interval
+     * @param syncIntervalMillis the interval at which the log is synced in milliseconds, 0 to only sync by count
+     * @param segmentSize        the initial size of a log segment in bytes
+     */
+    public MappedFilePersistence(Path baseDirectory, int syncEvery, long syncIntervalMillis, long segmentSize) {
+        if (syncEvery < 0 || syncIntervalMillis < 0) {
+            throw new IllegalArgumentException("Sync count and interval must not be negative");
+        }
+        if (segmentSize < KEY_OFFSET || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment size must be in range [" + KEY_OFFSET + ", 2^31)");
+        }
+        this.baseDirectory = baseDirectory;
+        this.syncEvery = syncEvery;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        if (directory != null) {
+            return;
+        }
+        try {
+            Path clientDirectory = baseDirectory.resolve(directoryName(clientId, serverURI));
+            Files.createDirectories(clientDirectory);
+            lockChannel = FileChannel.open(clientDirectory.resolve(".lck"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                lockChannel.close();
+                throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+            }
+            directory = clientDirectory;
+            recover();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+        if (syncIntervalMillis > 0) {
+            syncTask = SYNCER.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Replays the segments left by an earlier run and compacts their live entries into a new one.
+     */
+    private void recover() throws IOException {
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            segments = files.filter(path -> path.getFileName().toString().matches("log-\\d+\\.bin")).sorted().toList();
+        }
+        Map<String, byte[]> live = new LinkedHashMap<>();
+        for (Path path : segments) {
+            try (FileChannel recovered = FileChannel.open(path)) {
+                MappedByteBuffer buffer = recovered.map(FileChannel.MapMode.READ_ONLY, 0, recovered.size());
+                int position = 0;
+                int length;
+                while ((length = entryLength(buffer, position)) > 0) {
+                    String key = key(buffer, position);
+                    if (buffer.get(position + TYPE_OFFSET) == PUT) {
+                        byte[] entry = new byte[length];
+                        buffer.get(position, entry);
+                        live.put(key, entry);
+                    } else {
+                        live.remove(key);
+                    }
+                    position += length;
+                }
+            }
+            String name = path.getFileName().toString();
+            segmentIndex = Math.max(segmentIndex, Integer.parseInt(name.substring(4, name.length() - 4)) + 1);
+        }
+        long liveBytes = live.values().stream().mapToLong(entry -> entry.length).sum();
+        openSegment(liveBytes);
+        for (Map.Entry<String, byte[]> entry : live.entrySet()) {
+            index.put(entry.getKey(), segment.position());
+            segment.put(entry.getValue());
+        }
+        sync();
+        for (Path path : segments) {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Checks the entry at a position of a segment.
+     *
+     * @return the length of the entry including its length and checksum, or 0 if there is no
+     * complete entry with a valid checksum at the position
+     */
+    private int entryLength(MappedByteBuffer buffer, int position) {
+        if (position + KEY_OFFSET > buffer.limit()) {
+            return 0;
+        }
+        int length = buffer.getInt(position);
+        if (length < KEY_OFFSET - TYPE_OFFSET || length > buffer.limit() - position - TYPE_OFFSET) {
+            return 0;
+        }
+        checksum.reset();
+        checksum.update(buffer.slice(position + TYPE_OFFSET, length));
+        return (int) checksum.getValue() == buffer.getInt(position + CHECKSUM_OFFSET) ? TYPE_OFFSET + length : 0;
+    }
+
+    private static String key(MappedByteBuffer buffer, int position) {
+        byte[] key = new byte[buffer.getShort(position + KEY_LENGTH_OFFSET)];
+        buffer.get(position + KEY_OFFSET, key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpen();
+        byte[] header = persistable.getHeaderBytes();
+        int headerLength = persistable.getHeaderLength();
+        byte[] payload = persistable.getPayloadBytes();
+        int payloadLength = payload == null ? 0 : persistable.getPayloadLength();
+        int position = append(PUT, key, headerLength + payloadLength);
+        int data = position + KEY_OFFSET + segment.getShort(position + KEY_LENGTH_OFFSET);
+        segment.put(data, header, persistable.getHeaderOffset(), headerLength);
+        if (payloadLength > 0) {
+            segment.put(data + headerLength, payload, persistable.getPayloadOffset(), payloadLength);
+        }
+        seal(position);
+        index.put(key, position);
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+        Integer position = index.get(key);
+        if (position == null) {
+            return null;
+        }
+        int keyLength = segment.getShort(position + KEY_LENGTH_OFFSET);
+        byte[] data = new byte[segment.getInt(position) - (KEY_OFFSET - TYPE_OFFSET) - keyLength];
+        segment.get(position + KEY_OFFSET + keyLength, data);
+        return new Persisted(data);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        if (index.remove(key) != null) {
+            seal(append(REMOVE, key, 0));
+        }
+    }
+
+    @Override
+    public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<>(index.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        index.clear();
+        try {
+            roll(0);
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return index.containsKey(key);
+    }
+
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        if (directory == null) {
+            return;
+        }
+        if (syncTask != null) {
+            syncTask.cancel(false);
+            syncTask = null;
+        }
+        try {
+            sync();
+            closeSegment();
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        } finally {
+            index.clear();
+            directory = null;
+        }
+    }
+
+    /**
+     * Appends the frame of an entry, everything but its data and checksum.
+     *
+     * @return the position of the entry
+     */
+    private int append(byte type, String key, int dataLength) throws MqttPersistenceException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = KEY_OFFSET - TYPE_OFFSET + keyBytes.length + dataLength;
+        if (segment.remaining() < TYPE_OFFSET + length) {
+            try {
+                roll(TYPE_OFFSET + length);
+            } catch (IOException e) {
+                throw new MqttPersistenceException(e);
+            }
+        }
+        int position = segment.position();
+        segment.putInt(position, length);
+        segment.put(position + TYPE_OFFSET, type);
+        segment.putShort(position + KEY_LENGTH_OFFSET, (short) keyBytes.length);
+        segment.put(position + KEY_OFFSET, keyBytes);
+        segment.position(position + TYPE_OFFSET + length);
+        return position;
+    }
+
+    /**
+     * Checksums a complete entry and syncs the log if enough writes are pending.
+     */
+    private void seal(int position) throws MqttPersistenceException {
+        int length = segment.getInt(position);
+        checksum.reset();
+        checksum.update(segment.slice(position + TYPE_OFFSET, length));
+        segment.putInt(position + CHECKSUM_OFFSET, (int) checksum.getValue());
+        if (syncEvery > 0 && ++unsynced >= syncEvery) {
+            sync();
+        }
+    }
+
+    /**
+     * Carries the live entries forward into a new segment and deletes the current one.
+     *
+     * @param needed the bytes of the entry that didn't fit
+     */
+    private void roll(int needed) throws IOException {
+        MappedByteBuffer previous = segment;
+        FileChannel previousChannel = channel;
+        Path previousPath = directory.resolve(segmentName(segmentIndex - 1));
+        long liveBytes = 0;
+        for (int position : index.values()) {
+            liveBytes += TYPE_OFFSET + previous.getInt(position);
+        }
+        openSegment(liveBytes + needed);
+        for (Map.Entry<String, Integer> entry : index.entrySet()) {
+            int position = entry.getValue();
+            int length = TYPE_OFFSET + previous.getInt(position);
+            entry.setValue(segment.position());
+            segment.put(previous.slice(position, length));
+        }
+        // the new segment must be durable before the old one goes
+        sync();
+        previousChannel.close();
+        Files.delete(previousPath);
+    }
+
+    /**
+     * Creates and maps the next segment, with room for at least the given bytes.
+     */
+    private void openSegment(long needed) throws IOException {
+        long size = Math.min(Integer.MAX_VALUE, Math.max(segmentSize, 2 * needed));
+        Path path = directory.resolve(segmentName(segmentIndex++));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        syncedPosition = 0;
+        unsynced = 0;
+    }
+
+    private void closeSegment() throws IOException {
+        int used = segment.position();
+        segment = null;
+        channel.truncate(used);
+        channel.close();
+        channel = null;
+    }
+
+    /**
+     * Forces the entries written since the last sync to disk.
+     */
+    private synchronized void sync() {
+        if (segment == null) {
+            return;
+        }
+        int position = segment.position();
+        if (position > syncedPosition) {
+            segment.force(syncedPosition, position - syncedPosition);
+            syncedPosition = position;
+        }
+        unsynced = 0;
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            // a failed sync is retried on the next interval, the entries stay in the page cache
+            e.printStackTrace();
+        }
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (directory == null) {
+            throw new MqttPersistenceException();
+        }
+    }
+
+    /**
+     * @param clientId  the client id
+     * @param serverURI the URI of the broker
+     * @return the name of the client's directory, with only the characters that are safe in a file name
+     */
+    static String directoryName(String clientId, String serverURI) {
+        StringBuilder name = new StringBuilder();
+        for (char c : (clientId + "-" + serverURI).toCharArray()) {
+            if (Character.isLetterOrDigit(c) || c == '-') {
+                name.append(c);
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * @param index the index of the segment
+     * @return the file name of the segment, which sorts in the order the segments were written
+     */
+    static String segmentName(int index) {
+        return String.format("log-%06d.bin", index);
+    }
+
+    /**
+     * A persisted message as read back from the log, its header and payload in one array.
+     */
+    private record Persisted(byte[] data) implements MqttPersistable {
+        @Override
+        public byte[] getHeaderBytes() {
+            return data;
+        }
+
+        @Override
+        public int getHeaderLength() {
+            return data.length;
+        }
+
+        @Override
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        @Override
+        public byte[] getPayloadBytes() {
+            return null;
+        }
+
+        @Override
+        public int getPayloadLength() {
+            return 0;
+        }
+
+        @Override
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+}
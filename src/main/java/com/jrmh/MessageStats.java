@@ -0,0 +1,269 @@
+package com.jrmh;
+
+import java.util.Arrays;
+
+/**
+ * The MessageStats class accumulates the per-experiment accounting of the messages received on
+ * {@code counter/#}: message and payload byte counts, out-of-order count, inter-message gaps and publish-to-receive
+ * latencies. Binary payloads are additionally tracked per publisher by a {@link SequenceTracker},
+ * every message is bucketed by second in a {@link ThroughputSeries} and counted per topic in
+ * {@link TopicCounts}. The records of a
+ * {@link BinaryBatch} are unpacked and each is accounted as a message of its own.
+ * It is fed by the analysis thread through the {@link IngestRing.Handler} interface and read by
+ * the Analyser once the ring has been drained.
+ */
+public class MessageStats implements IngestRing.Handler {
+    private static final long MAX_LATENCY_NANOS = 600_000_000_000L; // 10 minutes
+    private static final long MAX_GAP_NANOS = 600_000_000_000L; // 10 minutes
+    // a corrupt record must not grow the trackers to an id no pool could ever have
+    static final int MAX_PUBLISHER_ID = 1 << 20;
+
+    private final Histogram latencies = new Histogram(MAX_LATENCY_NANOS, 3);
+    private final Histogram msgGaps = new Histogram(MAX_GAP_NANOS, 3);
+    private final ThroughputSeries series = new ThroughputSeries();
+    private final TopicCounts topics = new TopicCounts();
+    private long prevMsg = -1;
+    private long prevMsgNanos = -1;
+    private int totalMessages = 0;
+    private long totalBytes = 0;
+    private int totalPublishes = 0;
+    private int outOfOrderCount = 0;
+    private long malformed = 0;
+    private long[] clockOffsets = new long[0]; // indexed by publisher id
+    // indexed by publisher id, only grows when a publisher id larger than any seen so far shows up
+    private SequenceTracker[] trackers = new SequenceTracker[16];
+
+    /**
+     * Resets the values for a new experiment.
+     *
+     * @param clockOffsets the publisher clock minus the local clock by publisher id, from {@link ClockSync}
+     */
+    public void reset(long[] clockOffsets) {
+        this.latencies.reset();
+        this.msgGaps.reset();
+        this.prevMsg = -1;
+        this.prevMsgNanos = -1;
+        this.totalMessages = 0;
+        this.totalBytes = 0;
+        this.totalPublishes = 0;
+        this.outOfOrderCount = 0;
+        this.malformed = 0;
+        this.clockOffsets = clockOffsets;
+        this.series.reset(System.nanoTime());
+        this.topics.reset();
+        for (SequenceTracker tracker : trackers) {
+            if (tracker != null) {
+                tracker.reset();
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(String topic, byte[] payload, long receiveNanos) {
+        if (BinaryBatch.isBatch(payload)) {
+            // every record of a batch is accounted like a message of its own
+            int offset = BinaryBatch.HEADER_LENGTH;
+            for (int i = 0, records = BinaryBatch.records(payload); i < records; i++) {
+                int length = BinaryBatch.recordLength(payload, offset);
+                if (length < 0) {
+                    break; // truncated or corrupt, the missing records show up as lost
+                }
+                onRecord(payload, offset + BinaryBatch.LENGTH_PREFIX, receiveNanos);
+                offset += BinaryBatch.LENGTH_PREFIX + length;
+            }
+        } else if (BinaryPayload.isBinary(payload)) {
+            onRecord(payload, 0, receiveNanos);
+        } else {
+            long currentMsg = parseCounter(payload);
+            if (currentMsg < 0) {
+                return; // not a counter, nothing to account
+            }
+            account(currentMsg, -1, receiveNanos);
+        }
+        this.totalPublishes++;
+        this.totalBytes += payload.length;
+        this.topics.increment(topic);
+    }
+
+    /**
+     * Accounts a {@link BinaryPayload} record, on its own or in a batch.
+     *
+     * @param payload      the payload holding the record
+     * @param offset       the offset of the record
+     * @param receiveNanos the System.nanoTime() at which the payload was received
+     */
+    private void onRecord(byte[] payload, int offset, long receiveNanos) {
+        int publisherId = BinaryPayload.publisherId(payload, offset);
+        if (publisherId < 0 || publisherId >= MAX_PUBLISHER_ID) {
+            malformed++;
+            return;
+        }
+        // publish-to-receive latency, with the send time moved onto our clock
+        long clockOffset = publisherId < clockOffsets.length ? clockOffsets[publisherId] : 0;
+        long latency = receiveNanos - (BinaryPayload.sendNanos(payload, offset) - clockOffset);
+        latencies.record(latency);
+        tracker(publisherId).record(BinaryPayload.sequence(payload, offset));
+        account(BinaryPayload.counter(payload, offset), latency, receiveNanos);
+    }
+
+    /**
+     * Accounts the count, order and gap of a received counter value.
+     *
+     * @param currentMsg   the counter value
+     * @param latency      the publish-to-receive latency, or -1 if the payload carries no send time
+     * @param receiveNanos the System.nanoTime() at which the payload was received
+     */
+    private void account(long currentMsg, long latency, long receiveNanos) {
+        this.totalMessages++;
+        // calculate the out-of-order rate
+        if (this.prevMsg != -1 && currentMsg - prevMsg != 1){
+            this.outOfOrderCount++;
+        }
+        // record the inter-message gap, O(1) and without boxing
+        long gap = -1;
+        if (this.prevMsg != -1 && currentMsg - prevMsg == 1){
+            gap = receiveNanos - this.prevMsgNanos;
+            msgGaps.record(gap);
+        }
+        series.record(receiveNanos, latency, gap);
+        this.prevMsg = currentMsg;
+        this.prevMsgNanos = receiveNanos;
+    }
+
+    /**
+     * Adds the accounting of another consumer's stats, to report several consumers as one. The
+     * sum is for reporting only and must not receive any further messages.
+     *
+     * @param other the stats to add
+     */
+    public void add(MessageStats other) {
+        this.latencies.add(other.latencies);
+        this.msgGaps.add(other.msgGaps);
+        this.series.add(other.series);
+        this.topics.addAll(other.topics);
+        this.totalMessages += other.totalMessages;
+        this.totalBytes += other.totalBytes;
+        this.totalPublishes += other.totalPublishes;
+        this.outOfOrderCount += other.outOfOrderCount;
+        this.malformed += other.malformed;
+        for (int id = 0; id < other.getTrackerBound(); id++) {
+            SequenceTracker tracker = other.getTracker(id);
+            if (tracker != null) {
+                tracker(id).add(tracker);
+            }
+        }
+    }
+
+    /**
+     * Counts a message that could not be accounted, e.g. one the handler failed on.
+     */
+    public void countMalformed() {
+        malformed++;
+    }
+
+    /**
+     * Gets the tracker of a publisher, creating it the first time the publisher shows up.
+     *
+     * @param publisherId the non-negative publisher id
+     * @return the tracker of the publisher
+     */
+    private SequenceTracker tracker(int publisherId) {
+        if (publisherId >= trackers.length) {
+            trackers = Arrays.copyOf(trackers, Math.max(trackers.length * 2, publisherId + 1));
+        }
+        SequenceTracker tracker = trackers[publisherId];
+        if (tracker == null) {
+            tracker = new SequenceTracker();
+            trackers[publisherId] = tracker;
+        }
+        return tracker;
+    }
+
+    /**
+     * Gets the tracker of a publisher for reporting.
+     *
+     * @param publisherId the publisher id
+     * @return the tracker, or null if the publisher sent no binary payload in this experiment
+     */
+    public SequenceTracker getTracker(int publisherId) {
+        if (publisherId < 0 || publisherId >= trackers.length) {
+            return null;
+        }
+        SequenceTracker tracker = trackers[publisherId];
+        return tracker == null || tracker.getReceived() == 0 ? null : tracker;
+    }
+
+    /**
+     * @return one more than the largest publisher id that may have a tracker
+     */
+    public int getTrackerBound() {
+        return trackers.length;
+    }
+
+    /**
+     * Parses an ASCII counter payload without building a String.
+     *
+     * @param payload the payload holding decimal digits, optionally padded with spaces
+     * @return the counter value, or -1 if the payload is not a counter
+     */
+    static long parseCounter(byte[] payload) {
+        int length = 0;
+        long value = 0;
+        for (; length < payload.length && payload[length] != PayloadEncoder.PADDING; length++) {
+            byte b = payload[length];
+            if (b < '0' || b > '9' || length == 19) {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        // the padding is only checked for its first byte, the encoder never writes anything else
+        return length == 0 ? -1 : value;
+    }
+
+    public int getTotalMessages() {
+        return totalMessages;
+    }
+
+    /**
+     * @return the MQTT messages the counted messages arrived in, which is fewer than
+     * {@link #getTotalMessages()} when the publishers batch their records
+     */
+    public int getTotalPublishes() {
+        return totalPublishes;
+    }
+
+    /**
+     * @return the payload bytes of the counted messages, excluding topics and MQTT framing
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public int getOutOfOrderCount() {
+        return outOfOrderCount;
+    }
+
+    /**
+     * @return the records skipped because they carried an impossible publisher id, plus the
+     * messages counted with {@link #countMalformed()}
+     */
+    public long getMalformed() {
+        return malformed;
+    }
+
+    public Histogram getLatencies() {
+        return latencies;
+    }
+
+    public Histogram getMsgGaps() {
+        return msgGaps;
+    }
+
+    public ThroughputSeries getSeries() {
+        return series;
+    }
+
+    public TopicCounts getTopics() {
+        return topics;
+    }
+}
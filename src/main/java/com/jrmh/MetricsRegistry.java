@@ -0,0 +1,335 @@
+package com.jrmh;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The MetricsRegistry holds the live metrics of a Publisher pool or an Analyser, to watch a run
+ * while it goes rather than only from the CSV files written after every experiment.
+ * <p>
+ * Metrics come in groups, one per publisher instance or subscriber, and every group is an MBean
+ * named {@code com.jrmh:type=<type>,<label>=<value>,...} in the platform MBean server, so JConsole
+ * or any JMX client sees them. With {@link #startHttp(int)} the registry also serves all groups as
+ * plain text in the Prometheus exposition format on {@code http://127.0.0.1:<port>/metrics}.
+ * <p>
+ * The hot paths only ever touch {@link Counter}s and {@link Timer}s, which are {@link LongAdder}s:
+ * a record is an uncontended add into the adder's base or the caller's own cell, without a lock
+ * or an allocation, and the cells are only summed when scraped. Gauges read state the program
+ * keeps anyway, such as a ring's indices, so they cost the hot paths nothing.
+ */
+public class MetricsRegistry implements AutoCloseable {
+    public static final String DOMAIN = "com.jrmh";
+    public static final String PATH = "/metrics";
+
+    private final List<Group> groups = new CopyOnWriteArrayList<>();
+    private final MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+    private HttpServer server;
+
+    /**
+     * A monotonic count, recorded on the hot path.
+     */
+    public static final class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        public void increment() {
+            adder.increment();
+        }
+
+        public void add(long value) {
+            adder.add(value);
+        }
+
+        public long sum() {
+            return adder.sum();
+        }
+    }
+
+    /**
+     * The count, total and maximum of a duration, recorded on the hot path. The mean over a
+     * scrape interval is the difference of two totals over the difference of two counts.
+     */
+    public static final class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        // only written when a new maximum is seen, so a steady duration costs no extra store
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        /**
+         * @param nanos the duration in nanoseconds
+         */
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+    }
+
+    /**
+     * One exposed value of a group.
+     *
+     * @param name  the name, unique within the group
+     * @param help  the description
+     * @param type  {@code counter} or {@code gauge}
+     * @param value reads the current value, called by the scraping thread
+     */
+    private record Series(String name, String help, String type, LongSupplier value) {
+    }
+
+    /**
+     * The metrics of one publisher instance, subscriber or process, exposed as one MBean.
+     */
+    public final class Group implements DynamicMBean {
+        private final String type;
+        private final String[] labels;
+        private final List<Series> series = new CopyOnWriteArrayList<>();
+
+        private Group(String type, String[] labels) {
+            this.type = type;
+            this.labels = labels;
+        }
+
+        /**
+         * @param name the name of the counter, unique within the group
+         * @param help the description
+         * @return a new counter
+         */
+        public Counter counter(String name, String help) {
+            Counter counter = new Counter();
+            series.add(new Series(name, help, "counter", counter::sum));
+            return counter;
+        }
+
+        /**
+         * @param name  the name of the gauge, unique within the group
+         * @param help  the description
+         * @param value reads the current value, must be safe to call from any thread
+         */
+        public void gauge(String name, String help, LongSupplier value) {
+            series.add(new Series(name, help, "gauge", value));
+        }
+
+        /**
+         * Adds a timer, exposed as {@code <name>_count}, {@code <name>_sum} and {@code <name>_max}.
+         *
+         * @param name the name of the timer, unique within the group, ending in its unit
+         * @param help the description
+         * @return a new timer
+         */
+        public Timer timer(String name, String help) {
+            Timer timer = new Timer();
+            series.add(new Series(name + "_count", help + ", count", "counter", timer::getCount));
+            series.add(new Series(name + "_sum", help + ", total", "counter", timer::getTotalNanos));
+            series.add(new Series(name + "_max", help + ", maximum", "gauge", timer::getMaxNanos));
+            return timer;
+        }
+
+        private ObjectName objectName() throws MalformedObjectNameException {
+            StringBuilder name = new StringBuilder(DOMAIN).append(":type=").append(type);
+            for (int i = 0; i < labels.length; i += 2) {
+                name.append(',').append(labels[i]).append('=').append(quote(labels[i + 1]));
+            }
+            return new ObjectName(name.toString());
+        }
+
+        private Series find(String attribute) throws AttributeNotFoundException {
+            for (Series s : series) {
+                if (s.name().equals(attribute)) {
+                    return s;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            return find(attribute).value().getAsLong();
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // JMX leaves unknown attributes out of the list
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = series.stream()
+                    .map(s -> new MBeanAttributeInfo(s.name(), "long", s.help(), true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(getClass().getName(), "Live " + type + " metrics", attributes, null, null, null);
+        }
+    }
+
+    /**
+     * Creates a group of metrics and registers it as an MBean. Groups are created while setting
+     * up, never on a hot path.
+     *
+     * @param type   the kind of the group, e.g. {@code publisher}, the prefix of its series' names
+     * @param labels the pairs of label names and values that tell the groups of a type apart
+     * @return the new group
+     */
+    public Group group(String type, String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must come in name and value pairs");
+        }
+        Group group = new Group(type, labels);
+        groups.add(group);
+        try {
+            mbeans.registerMBean(group, group.objectName());
+        } catch (JMException e) {
+            // the text endpoint still has the group
+            System.err.println("Could not register the " + type + " metrics with JMX: " + e.getMessage());
+        }
+        return group;
+    }
+
+    /**
+     * Serves the metrics on the loopback interface only, so a run never exposes them to the network.
+     *
+     * @param port the port to listen on, 0 for any free port
+     * @return the port listened on
+     * @throws IOException if the port cannot be bound
+     */
+    public synchronized int startHttp(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(PATH, this::handle);
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Renders every series of every group in the Prometheus text format, the series of the same
+     * name together under one {@code # HELP} and {@code # TYPE} line.
+     *
+     * @return the text
+     */
+    public String scrape() {
+        Map<String, List<String>> samples = new LinkedHashMap<>();
+        Map<String, Series> first = new LinkedHashMap<>();
+        for (Group group : groups) {
+            String labels = labels(group.labels);
+            for (Series s : group.series) {
+                String name = group.type + "_" + s.name();
+                first.putIfAbsent(name, s);
+                samples.computeIfAbsent(name, n -> new ArrayList<>()).add(name + labels + " " + s.value().getAsLong());
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, List<String>> entry : samples.entrySet()) {
+            Series s = first.get(entry.getKey());
+            text.append("# HELP ").append(entry.getKey()).append(' ').append(s.help()).append('\n');
+            text.append("# TYPE ").append(entry.getKey()).append(' ').append(s.type()).append('\n');
+            for (String sample : entry.getValue()) {
+                text.append(sample).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    private static String labels(String[] labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            String value = labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            text.append(labels[i]).append("=\"").append(value).append('"');
+        }
+        return text.append('}').toString();
+    }
+
+    /**
+     * Quotes an ObjectName value only if it holds a character ObjectName reserves.
+     */
+    private static String quote(String value) {
+        for (char c : value.toCharArray()) {
+            if (",=:\"*?\n\\".indexOf(c) >= 0) {
+                return ObjectName.quote(value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Stops the HTTP endpoint and unregisters the MBeans.
+     */
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        for (Group group : groups) {
+            try {
+                mbeans.unregisterMBean(group.objectName());
+            } catch (JMException e) {
+                // never registered
+            }
+        }
+        groups.clear();
+    }
+}
@@ -0,0 +1,241 @@
+package com.jrmh;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.Arrays;
+
+/**
+ * The PayloadEncoder writes counter values straight into reused payload buffers so that the
+ * publish loop does not allocate per message. It keeps one {@link MqttMessage} per decimal digit
+ * length and rewrites the bytes of the matching buffer in place, so the payload on the wire is
+ * exactly the ASCII text that {@code Long.toString} would have produced.
+ * <p>
+ * With a payload size, every buffer is allocated at that size and padded once: ASCII digits are
+ * followed by spaces, a binary record by zeros. The padding is never rewritten, so a 64 KB payload
+ * costs the publish loop no more than the bare counter, and the buffers of an encoder are its pool.
+ * <p>
+ * With a batch capacity above 1, {@link #append} packs binary records into one {@link BinaryBatch}
+ * buffer whose header and record lengths are written once, and {@link #batch()} hands it out as a
+ * message. Only a batch cut short, by the linger time or the end of the experiment, is copied into
+ * a buffer of its own length.
+ * <p>
+ * A message returned by {@link #encode} or {@link #batch()} is only reused by the next call to {@link #encode} on the
+ * same encoder, so the caller must not encode again while the previous message is still in flight.
+ */
+public class PayloadEncoder {
+    private static final int MAX_DIGITS = 19; // Long.MAX_VALUE has 19 digits
+    private static final long[] POWERS_OF_TEN = new long[MAX_DIGITS];
+
+    static {
+        long power = 1;
+        for (int i = 0; i < MAX_DIGITS; i++) {
+            POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+    }
+
+    public static final byte PADDING = ' ';
+
+    private final int qos;
+    private final int payloadSize;
+    private final MqttMessage[] messages = new MqttMessage[MAX_DIGITS + 1];
+    private MqttMessage binaryMessage;
+    private final int batchCapacity;
+    private final int recordLength;
+    private MqttMessage batchMessage;
+    private int batched = 0;
+    private long publishNanos = 0; // when the engine handed this slot's message to the client
+
+    /**
+     * Constructs a PayloadEncoder instance with unpadded payloads.
+     *
+     * @param qos the QoS level set on every message produced by this encoder
+     */
+    public PayloadEncoder(int qos) {
+        this(qos, 0);
+    }
+
+    /**
+     * Constructs a PayloadEncoder instance.
+     *
+     * @param qos         the QoS level set on every message produced by this encoder
+     * @param payloadSize the size payloads are padded to in bytes, 0 for no padding; a counter or
+     *                    record that doesn't fit is sent unpadded
+     */
+    public PayloadEncoder(int qos, int payloadSize) {
+        this(qos, payloadSize, 1);
+    }
+
+    /**
+     * Constructs a PayloadEncoder instance that can batch binary records.
+     *
+     * @param qos           the QoS level set on every message produced by this encoder
+     * @param payloadSize   the size payloads, or the records of a batch, are padded to in bytes, 0 for no padding
+     * @param batchCapacity the number of records of a full batch, see {@link BinaryBatch#capacity}
+     */
+    public PayloadEncoder(int qos, int payloadSize, int batchCapacity) {
+        if (batchCapacity < 1) {
+            throw new IllegalArgumentException("Batch capacity must be at least 1");
+        }
+        this.qos = qos;
+        this.payloadSize = payloadSize;
+        this.batchCapacity = batchCapacity;
+        this.recordLength = Math.max(BinaryPayload.LENGTH, payloadSize);
+    }
+
+    /**
+     * Builds the topic a publisher instance sends to for one experiment.
+     *
+     * @param instance the instance number of the publisher
+     * @param qos      the QoS level of the experiment
+     * @param delay    the delay of the experiment
+     * @return the topic in the form {@code counter/instance/qos/delay}
+     */
+    public static String topic(int instance, int qos, int delay) {
+        return "counter/" + instance + "/" + qos + "/" + delay;
+    }
+
+    /**
+     * Builds one of the topics a publisher instance spreads an experiment's messages over.
+     *
+     * @param instance the instance number of the publisher
+     * @param qos      the QoS level of the experiment
+     * @param delay    the delay of the experiment
+     * @param index    the index of the topic, from 0
+     * @return the topic in the form {@code counter/instance/qos/delay/index}
+     */
+    public static String topic(int instance, int qos, int delay, int index) {
+        return topic(instance, qos, delay) + "/" + index;
+    }
+
+    /**
+     * Encodes a counter value as ASCII digits into a reused message.
+     *
+     * @param value the non-negative counter value
+     * @return the message holding the encoded value
+     */
+    public MqttMessage encode(long value) {
+        int length = digits(value);
+        MqttMessage message = messages[length];
+        if (message == null) {
+            // Only allocated the first time the counter reaches a new digit length
+            byte[] payload = new byte[Math.max(length, payloadSize)];
+            Arrays.fill(payload, length, payload.length, PADDING);
+            message = new MqttMessage(payload);
+            message.setQos(qos);
+            messages[length] = message;
+        }
+        writeDigits(value, message.getPayload(), 0, length);
+        return message;
+    }
+
+    /**
+     * Encodes a {@link BinaryPayload} record into a reused message.
+     *
+     * @param publisherId the instance number of the publisher
+     * @param sequence    the per-publisher sequence number
+     * @param counter     the global counter value
+     * @param sendNanos   the send timestamp in nanoseconds
+     * @return the message holding the encoded record
+     */
+    public MqttMessage encode(int publisherId, long sequence, long counter, long sendNanos) {
+        if (binaryMessage == null) {
+            binaryMessage = new MqttMessage(new byte[Math.max(BinaryPayload.LENGTH, payloadSize)]);
+            binaryMessage.setQos(qos);
+        }
+        BinaryPayload.write(binaryMessage.getPayload(), publisherId, sequence, counter, sendNanos);
+        return binaryMessage;
+    }
+
+    /**
+     * Appends a {@link BinaryPayload} record to the batch being built.
+     *
+     * @param publisherId the instance number of the publisher
+     * @param sequence    the per-publisher sequence number
+     * @param counter     the global counter value
+     * @param sendNanos   the send timestamp in nanoseconds
+     * @return true if the batch is full and must be taken with {@link #batch()} before the next append
+     */
+    public boolean append(int publisherId, long sequence, long counter, long sendNanos) {
+        if (batchMessage == null) {
+            byte[] payload = new byte[BinaryBatch.length(batchCapacity, recordLength)];
+            BinaryBatch.writeFrame(payload, batchCapacity, recordLength);
+            batchMessage = new MqttMessage(payload);
+            batchMessage.setQos(qos);
+        }
+        BinaryPayload.write(batchMessage.getPayload(), BinaryBatch.recordOffset(batched, recordLength),
+                publisherId, sequence, counter, sendNanos);
+        return ++batched == batchCapacity;
+    }
+
+    /**
+     * Takes the batch built by {@link #append}, and starts a new one.
+     *
+     * @return the message holding the records appended since the last batch, which must be at least one
+     */
+    public MqttMessage batch() {
+        int records = batched;
+        batched = 0;
+        if (records == batchCapacity) {
+            return batchMessage;
+        }
+        // a batch cut short gets an exact copy, the full buffer keeps its frame for the next batch
+        byte[] payload = Arrays.copyOf(batchMessage.getPayload(), BinaryBatch.length(records, recordLength));
+        BinaryBatch.writeFrame(payload, records, recordLength);
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos);
+        return message;
+    }
+
+    /**
+     * @return the number of records appended to the batch being built
+     */
+    public int getBatched() {
+        return batched;
+    }
+
+    /**
+     * Stamps the time the message of this slot was handed to the client, for the publish latency.
+     *
+     * @param nanos the System.nanoTime() of the hand-over
+     */
+    public void setPublishNanos(long nanos) {
+        this.publishNanos = nanos;
+    }
+
+    /**
+     * @return the time the message of this slot was last handed to the client
+     */
+    public long getPublishNanos() {
+        return publishNanos;
+    }
+
+    /**
+     * Counts the decimal digits of a non-negative value.
+     *
+     * @param value the non-negative value
+     * @return the number of digits, at least 1
+     */
+    static int digits(long value) {
+        int length = 1;
+        while (length < MAX_DIGITS && value >= POWERS_OF_TEN[length]) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes the decimal digits of a non-negative value into a buffer.
+     *
+     * @param value  the non-negative value
+     * @param buffer the buffer to write to
+     * @param offset the index of the first digit
+     * @param length the number of digits, as returned by {@link #digits}
+     */
+    static void writeDigits(long value, byte[] buffer, int offset, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.jrmh;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The PoolCoordinator lets publisher pools in several JVMs, on one or several hosts, run as one
+ * pool. It runs inside the master of one designated node and speaks the following protocol:
+ * <ol>
+ *     <li>every node publishes {@code request/register} with {@code nodeId,workerCount} until it is
+ *     answered on {@code request/assign/<nodeId>} with the global id of its first instance minus one;</li>
+ *     <li>the Analyser's experiment config on {@code request/experiment} reaches every node directly,
+ *     every node acknowledges its version on {@code request/ack/<nodeId>}, and once all nodes have
+ *     acknowledged the same version the coordinator acknowledges it to the Analyser on {@code request/ack};</li>
+ *     <li>on the Analyser's {@code instruction/ready} the coordinator waits until all nodes have
+ *     registered and publishes {@code instruction/start} with the config version of the ready signal
+ *     and a wall-clock start time a little in the future, {@code version,startMillis}, so that every
+ *     node starts the same experiment at the same moment;</li>
+ *     <li>every node reports {@code count,elapsedNanos,headerBytes,headerBytesV311;id:count,...} on {@code complete/<nodeId>}, and
+ *     once all nodes have reported the coordinator publishes the aggregate on {@code complete}.</li>
+ * </ol>
+ * All publishing happens on a separate thread, never inside a Paho callback. A malformed message is
+ * logged and ignored, throwing inside the callback would make Paho drop the connection.
+ */
+public class PoolCoordinator {
+    public static final String REGISTER_TOPIC = "request/register";
+    public static final String ASSIGN_TOPIC_PREFIX = "request/assign/";
+    public static final String READY_TOPIC = "instruction/ready";
+    public static final String START_TOPIC = "instruction/start";
+    public static final String COMPLETE_TOPIC = "complete";
+    public static final String REPORT_TOPIC_PREFIX = "complete/";
+    public static final String ACK_TOPIC_PREFIX = Publisher.ACK_TOPIC + "/";
+    private static final long START_LEAD_MS = 1000;
+
+    private final MqttClient client;
+    private final int nodeCount;
+    private final ExecutorService publisher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "pool-coordinator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final CountDownLatch registered;
+    // only touched on the coordinator thread
+    private final Map<String, Integer> bases = new LinkedHashMap<>();
+    private final Map<String, Report> reports = new LinkedHashMap<>();
+    private final Map<String, Long> acks = new LinkedHashMap<>();
+    private int nextBase = 0;
+
+    /**
+     * Constructs a PoolCoordinator instance.
+     *
+     * @param client    the connected MQTT client of the coordinating node's master
+     * @param nodeCount the number of nodes, including the coordinating node, that make up the pool
+     */
+    public PoolCoordinator(MqttClient client, int nodeCount) {
+        this.client = client;
+        this.nodeCount = nodeCount;
+        this.registered = new CountDownLatch(nodeCount);
+    }
+
+    /**
+     * Subscribes to the coordination topics.
+     *
+     * @throws MqttException if an error occurs while subscribing
+     */
+    public void start() throws MqttException {
+        client.subscribe(REGISTER_TOPIC, 2, (topic, message) -> {
+            String[] fields = new String(message.getPayload()).split(",");
+            int workers;
+            try {
+                if (fields.length != 2) {
+                    throw new NumberFormatException("Expected nodeId,workerCount");
+                }
+                workers = Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring malformed registration: " + e.getMessage());
+                return;
+            }
+            publisher.execute(() -> register(fields[0], workers));
+        });
+        client.subscribe(ACK_TOPIC_PREFIX + "+", 2, (topic, message) -> {
+            String nodeId = topic.substring(ACK_TOPIC_PREFIX.length());
+            long version;
+            try {
+                version = Long.parseLong(new String(message.getPayload()));
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring malformed acknowledgement of node " + nodeId + ": " + e.getMessage());
+                return;
+            }
+            publisher.execute(() -> collectAck(nodeId, version));
+        });
+        client.subscribe(READY_TOPIC, 2, (topic, message) -> {
+            long version;
+            try {
+                version = Long.parseLong(new String(message.getPayload()));
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring malformed ready signal: " + e.getMessage());
+                return;
+            }
+            publisher.execute(() -> startNodes(version));
+        });
+        client.subscribe(REPORT_TOPIC_PREFIX + "+", 2, (topic, message) -> {
+            String nodeId = topic.substring(REPORT_TOPIC_PREFIX.length());
+            Report report;
+            try {
+                report = Report.parse(new String(message.getPayload()));
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring malformed report of node " + nodeId + ": " + e.getMessage());
+                return;
+            }
+            publisher.execute(() -> collectReport(nodeId, report));
+        });
+        System.out.println("Coordinating a pool of " + nodeCount + " node(s)");
+    }
+
+    /**
+     * Assigns a range of global instance ids to a node, a node that registers again gets the same range.
+     *
+     * @param nodeId  the id of the registering node
+     * @param workers the number of workers of the node
+     */
+    private void register(String nodeId, int workers) {
+        Integer base = bases.get(nodeId);
+        if (base == null) {
+            base = nextBase;
+            nextBase += workers;
+            bases.put(nodeId, base);
+            registered.countDown();
+            System.out.println("Node " + nodeId + " registered with " + workers + " worker(s), instances "
+                    + (base + 1) + "-" + (base + workers));
+        }
+        publish(ASSIGN_TOPIC_PREFIX + nodeId, Integer.toString(base));
+    }
+
+    /**
+     * Collects a node's acknowledgement of an experiment config and acknowledges the config to the
+     * Analyser once every node has acknowledged the same version.
+     *
+     * @param nodeId  the id of the acknowledging node
+     * @param version the version of the config the node holds
+     */
+    private void collectAck(String nodeId, long version) {
+        acks.put(nodeId, version);
+        if (acks.size() == nodeCount && acks.values().stream().allMatch(v -> v == version)) {
+            publish(Publisher.ACK_TOPIC, Long.toString(version));
+        }
+    }
+
+    /**
+     * Publishes the synchronized start time once every node has registered.
+     *
+     * @param version the version of the config the Analyser is ready for, the nodes ignore a start for any other
+     */
+    private void startNodes(long version) {
+        try {
+            registered.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        reports.clear();
+        publish(START_TOPIC, version + "," + (System.currentTimeMillis() + START_LEAD_MS));
+    }
+
+    /**
+     * Collects a node's report and publishes the pool's totals once every node has reported.
+     *
+     * @param nodeId the id of the reporting node
+     * @param report the node's report
+     */
+    private void collectReport(String nodeId, Report report) {
+        reports.put(nodeId, report);
+        if (reports.size() < nodeCount) {
+            return;
+        }
+        long total = 0;
+        long elapsedNanos = 0;
+        long headerBytes = 0;
+        long headerBytesV311 = 0;
+        StringBuilder counts = new StringBuilder();
+        for (Map.Entry<String, Report> entry : reports.entrySet()) {
+            Report node = entry.getValue();
+            total += node.count();
+            elapsedNanos = Math.max(elapsedNanos, node.elapsedNanos());
+            headerBytes += node.headerBytes();
+            headerBytesV311 += node.headerBytesV311();
+            if (!node.counts().isEmpty()) {
+                if (counts.length() > 0) {
+                    counts.append(',');
+                }
+                counts.append(node.counts());
+            }
+            System.out.println("Node " + entry.getKey() + " published " + node.count() + " message(s)");
+        }
+        reports.clear();
+        System.out.println("Publishing pool complete message, " + total + " message(s) in total");
+        publish(COMPLETE_TOPIC, total + "," + elapsedNanos + "," + headerBytes + "," + headerBytesV311 + ";" + counts);
+    }
+
+    private void publish(String topic, String payload) {
+        MqttMessage message = new MqttMessage(payload.getBytes());
+        message.setQos(2);
+        try {
+            client.publish(topic, message);
+        } catch (MqttException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A node's report of an experiment.
+     *
+     * @param count           the number of messages the node published
+     * @param elapsedNanos    the time from the start signal until every instance of the node finished
+     * @param headerBytes     the PUBLISH bytes besides the payloads the node sent
+     * @param headerBytesV311 the PUBLISH bytes besides the payloads MQTT 3.1.1 would have sent
+     * @param counts          the messages each instance published, {@code id:count,...}, empty if none did
+     */
+    private record Report(long count, long elapsedNanos, long headerBytes, long headerBytesV311, String counts) {
+        /**
+         * @param payload the report, {@code count,elapsedNanos,headerBytes,headerBytesV311;id:count,...}
+         * @return the parsed report
+         * @throws NumberFormatException if a total is missing or not a number
+         */
+        static Report parse(String payload) {
+            String[] parts = payload.split(";", 2);
+            String[] totals = parts[0].split(",");
+            if (totals.length < 2) {
+                throw new NumberFormatException("Expected count,elapsedNanos in \"" + parts[0] + "\"");
+            }
+            boolean headers = totals.length > 3;
+            return new Report(Long.parseLong(totals[0]), Long.parseLong(totals[1]),
+                    headers ? Long.parseLong(totals[2]) : 0, headers ? Long.parseLong(totals[3]) : 0,
+                    parts.length > 1 ? parts[1] : "");
+        }
+    }
+}
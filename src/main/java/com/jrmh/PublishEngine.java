@@ -0,0 +1,160 @@
+package com.jrmh;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * The PublishEngine pipelines publishes over a single connection. Up to {@code window} messages
+ * can be in flight at once. When the window is full the publishing thread blocks until the broker
+ * has acknowledged an earlier message, so a worker keeps the connection saturated without
+ * overrunning the client's or the broker's inflight limit.
+ * <p>
+ * Every slot of the window is a {@link PayloadEncoder} with its own buffers. A slot is taken with
+ * {@link #acquire()}, travels with the publish as its user context and is handed back by the
+ * completion callback, so a buffer is never rewritten while the broker may still need it.
+ * The slot also carries the time its message was handed to the client, so the callback records
+ * the publish latency without a lookup.
+ * <p>
+ * The subclasses connect with one protocol version, {@link AsyncPublishEngine} with MQTT 3.1.1
+ * and {@link V5PublishEngine} with MQTT 5.
+ */
+public abstract class PublishEngine {
+    private final ArrayBlockingQueue<PayloadEncoder> window;
+    private final PublishMetrics metrics;
+    private int windowSize;
+
+    /**
+     * Constructs a PublishEngine instance.
+     *
+     * @param windowSize the maximum number of unacknowledged messages, must be at least 1
+     * @param metrics    the live metrics of the publishing instance, recorded by the completion callback
+     */
+    protected PublishEngine(int windowSize, PublishMetrics metrics) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("In-flight window must be at least 1");
+        }
+        this.windowSize = windowSize;
+        this.window = new ArrayBlockingQueue<>(windowSize);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Connects to the broker and waits until the connection is established.
+     *
+     * @param cleanSession false to resume the session the broker and the persistence kept for the client id
+     * @throws MqttException if an error occurs while connecting
+     */
+    public abstract void connect(boolean cleanSession) throws MqttException;
+
+    /**
+     * Publishes a message without waiting for the broker. The slot returns to the window once
+     * the broker has completed the delivery.
+     *
+     * @param topic   the topic to publish to
+     * @param message the message to publish, encoded by {@code slot}
+     * @param slot    the slot taken with {@link #acquire()}
+     * @throws MqttException if the client refuses the message
+     */
+    public abstract void publish(String topic, MqttMessage message, PayloadEncoder slot) throws MqttException;
+
+    /**
+     * Disconnects from the broker if connected and releases the client and its persistence,
+     * also after a failed {@link #connect(boolean)}.
+     *
+     * @throws MqttException if an error occurs while disconnecting
+     */
+    public abstract void close() throws MqttException;
+
+    /**
+     * Shrinks the window to a limit the broker announced when connecting, before the first
+     * {@link #prepare}.
+     *
+     * @param limit the number of unacknowledged messages the broker accepts
+     */
+    protected void limitWindow(int limit) {
+        windowSize = Math.max(1, Math.min(windowSize, limit));
+    }
+
+    /**
+     * @return the maximum number of unacknowledged messages
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Refills the window with fresh slots for a new experiment. Must be called before the first
+     * {@link #acquire()} of every experiment, while nothing is in flight.
+     *
+     * @param qos           the QoS level of the messages encoded by the slots
+     * @param payloadSize   the size the slots pad their payloads to, 0 for no padding
+     * @param batchCapacity the number of records of a full batch, 1 to publish every record on its own
+     */
+    public void prepare(int qos, int payloadSize, int batchCapacity) {
+        window.clear();
+        for (int i = 0; i < windowSize; i++) {
+            window.offer(new PayloadEncoder(qos, payloadSize, batchCapacity));
+        }
+    }
+
+    /**
+     * Takes a free slot of the window, blocks while the window is full.
+     *
+     * @return the slot to encode the next message with
+     * @throws InterruptedException if the thread is interrupted while waiting for a free slot
+     */
+    public PayloadEncoder acquire() throws InterruptedException {
+        return window.take();
+    }
+
+    /**
+     * Waits until every message handed to {@link #publish} has been completed by the broker.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void drain() throws InterruptedException {
+        while (window.size() < windowSize) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * @return the number of messages currently in flight
+     */
+    public int getInFlight() {
+        return windowSize - window.size();
+    }
+
+    /**
+     * Stamps a slot with the time its message is handed to the client.
+     */
+    protected static void sent(PayloadEncoder slot) {
+        slot.setPublishNanos(System.nanoTime());
+    }
+
+    /**
+     * Hands the slot of a delivery the broker completed back to the window.
+     */
+    protected void completed(PayloadEncoder slot) {
+        metrics.onAcked(System.nanoTime() - slot.getPublishNanos());
+        window.offer(slot);
+    }
+
+    /**
+     * Hands the slot of a delivery that failed back to the window.
+     */
+    protected void failed(PayloadEncoder slot) {
+        metrics.onFailed();
+        window.offer(slot);
+    }
+
+    /**
+     * Hands the slot of a message the client refused back to the window, the publish loop
+     * counts the refusal when it catches the exception.
+     */
+    protected void refused(PayloadEncoder slot) {
+        window.offer(slot);
+    }
+}
@@ -0,0 +1,60 @@
+package com.jrmh;
+
+/**
+ * The PublishHeaders class computes the bytes a PUBLISH packet spends besides its payload, to
+ * compare what MQTT 3.1.1 and MQTT 5 with topic aliases put on the wire for the same messages.
+ * <pre>
+ * field                 3.1.1          5
+ * packet type, flags    1              1
+ * remaining length      1-4            1-4
+ * topic name            2 + length     2 + length, 2 + 0 once aliased
+ * packet identifier     2 at QoS 1, 2  2 at QoS 1, 2
+ * property length       -              1-4
+ * properties            -              3 for a topic alias
+ * </pre>
+ */
+public final class PublishHeaders {
+    /**
+     * The property of a topic alias, its identifier byte and two byte value.
+     */
+    public static final int TOPIC_ALIAS = 3;
+
+    private PublishHeaders() {
+    }
+
+    /**
+     * @param topicLength   the length of the topic name in bytes
+     * @param qos           the QoS level of the message
+     * @param payloadLength the length of the payload in bytes
+     * @return the bytes of an MQTT 3.1.1 PUBLISH besides its payload
+     */
+    public static int v311(int topicLength, int qos, int payloadLength) {
+        int variableHeader = 2 + topicLength + (qos > 0 ? 2 : 0);
+        return 1 + varIntLength(variableHeader + payloadLength) + variableHeader;
+    }
+
+    /**
+     * @param topicLength    the length of the topic name in bytes, 0 when an established alias stands in for it
+     * @param qos            the QoS level of the message
+     * @param payloadLength  the length of the payload in bytes
+     * @param propertyLength the length of the properties in bytes, e.g. {@link #TOPIC_ALIAS}
+     * @return the bytes of an MQTT 5 PUBLISH besides its payload
+     */
+    public static int v5(int topicLength, int qos, int payloadLength, int propertyLength) {
+        int variableHeader = 2 + topicLength + (qos > 0 ? 2 : 0) + varIntLength(propertyLength) + propertyLength;
+        return 1 + varIntLength(variableHeader + payloadLength) + variableHeader;
+    }
+
+    /**
+     * @param value a non-negative value
+     * @return the bytes of the value as an MQTT variable byte integer, 7 bits per byte
+     */
+    static int varIntLength(int value) {
+        int length = 1;
+        while (value >= 128) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+}
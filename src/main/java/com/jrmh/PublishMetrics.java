@@ -0,0 +1,67 @@
+package com.jrmh;
+
+/**
+ * The PublishMetrics class holds the live metrics of one publishing instance, see {@link MetricsRegistry}.
+ * The publish loop counts what it hands to the client and the blocking client's round trips, the
+ * completion callbacks of the {@link PublishEngine} count the async acknowledgements. They
+ * outlive the instance's connections, so they count across reconnects and experiments.
+ */
+public final class PublishMetrics {
+    private final MetricsRegistry.Counter sent;
+    private final MetricsRegistry.Counter acked;
+    private final MetricsRegistry.Counter failed;
+    private final MetricsRegistry.Timer latency;
+
+    /**
+     * Constructs a PublishMetrics instance.
+     *
+     * @param group the group of the instance, its series are added to it
+     */
+    public PublishMetrics(MetricsRegistry.Group group) {
+        this.sent = group.counter("sent", "MQTT messages handed to the client");
+        this.acked = group.counter("acked", "MQTT messages completed by the broker, acknowledged at QoS 1 and 2, written at QoS 0");
+        this.failed = group.counter("failed", "MQTT messages the client refused or failed to deliver");
+        // derived rather than counted, so neither side of a delivery pays for it
+        group.gauge("in_flight", "MQTT messages handed to the client and not yet completed",
+                () -> Math.max(0, sent.sum() - acked.sum() - failed.sum()));
+        this.latency = group.timer("publish_latency_nanos", "Time from handing a message to the client to its completion in ns");
+    }
+
+    /**
+     * Records a message handed to the client, before the call that hands it over.
+     */
+    public void onSent() {
+        sent.increment();
+    }
+
+    /**
+     * Records a completed delivery.
+     *
+     * @param latencyNanos the time since the message was handed to the client
+     */
+    public void onAcked(long latencyNanos) {
+        acked.increment();
+        latency.record(latencyNanos);
+    }
+
+    /**
+     * Records a delivery that failed or was refused.
+     */
+    public void onFailed() {
+        failed.increment();
+    }
+
+    /**
+     * @return the number of completed deliveries so far
+     */
+    public long getAcked() {
+        return acked.sum();
+    }
+
+    /**
+     * @return the number of failed deliveries so far
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+}
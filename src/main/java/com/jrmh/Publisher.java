@@ -2,8 +2,17 @@ package com.jrmh;
 
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The Publisher class represents an MQTT publisher client that subscribes to request topics,
@@ -12,23 +21,57 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class Publisher {
     private static final String CLIENT_ID_PREFIX = "pub-";
-    private static final String REQUEST_QOS = "request/qos";
-    private static final String REQUEST_DELAY = "request/delay";
-    private static final String REQUEST_INSTANCE_COUNT = "request/instancecount";
-    private static final String READY_TOPIC = "instruction/ready";
-    private static final String COMPLETE = "complete";
+    public static final String REQUEST_EXPERIMENT = "request/experiment";
+    public static final String ACK_TOPIC = "request/ack";
+    public static final String CLEAN_SESSION = "clean";
+    public static final String PERSISTENT_SESSION = "persistent";
+    public static final String MEMORY_STORE = "memory";
+    // Paho's one-file-per-message store, the memory-mapped log synced in batches, and the log synced on every write
+    public static final List<String> STORES = List.of(MEMORY_STORE, "file", "mmap", "mmap-sync");
+    // the protocol versions of the publishing connections, MQTT 3.1.1 and MQTT 5
+    public static final int MQTT_V3 = 3;
+    public static final int MQTT_V5 = 5;
+    private static final long SPIN_THRESHOLD_NANOS = 100_000;
+    private static final long REGISTER_RETRY_MS = 1000;
+    private static final String READY_TOPIC = PoolCoordinator.READY_TOPIC;
+    private static final String COMPLETE = PoolCoordinator.COMPLETE_TOPIC;
     private static final AtomicLong globalCounter = new AtomicLong(0);
+    private static final MetricsRegistry registry = new MetricsRegistry();
 
     private static CountDownLatch startLatch = new CountDownLatch(1);
     private static CountDownLatch doneLatch;
+    private static CountDownLatch connectedLatch;
+    // per-instance figures, each slot is only written by its own instance, and the counts only
+    // once an experiment is over, so the instances don't share cache lines while publishing
+    private static long[] connectNanos;
+    private static long[] publishCounts;
+    // PUBLISH bytes besides the payloads as sent, and as MQTT 3.1.1 would have sent them, see PublishHeaders,
+    // also only stored once an experiment is over
+    private static long[] headerBytes;
+    private static long[] headerBytesV311;
+    private static long rampStartNanos = 0;
+    private static long rampIntervalNanos = 0;
+    // multi-process pools, see PoolCoordinator
+    private static String nodeId = null; // null when this pool runs on its own
+    private static int nodeCount = 0; // the number of nodes when this pool coordinates the others, 0 otherwise
+    private static volatile int instanceBase = 0; // added to the local instance number to get the global one
     private final int MASTER;
 
     private final int TIME;
     private final String BROKER_URL;
     private final int instance;
-    private static int qos = 0;
-    private static int delay = 0;
-    private static int activeInstances = 0;
+    private final int window;
+    private final boolean binary;
+    private final CommsExecutor comms;
+    private final PublishMetrics metrics;
+    // the records this instance published in the current experiment, for the live gauge
+    private final AtomicLong records = new AtomicLong();
+    // replaced as a whole by every request/experiment, never modified
+    private static volatile ExperimentConfig config = ExperimentConfig.NONE;
+    // the configs in the order they arrived, every instance follows the chain from the first
+    private static final Preparation FIRST = new Preparation(ExperimentConfig.NONE, 0);
+    private static Preparation latest = FIRST; // only touched by the master's Paho callback thread
+    private static Path persistenceDirectory = Path.of("persistence");
 
     /**
      * Constructs a Publisher instance.
@@ -37,12 +80,23 @@ public class Publisher {
      * @param brokerURL the URL of the MQTT broker
      * @param instance  the instance number of this publisher
      * @param masterId  the instance number of the master publisher
+     * @param window    the async in-flight window of a worker, 0 to publish with the blocking client
+     * @param binary    true to send timestamped {@link BinaryPayload} records instead of the ASCII counter
+     * @param comms     the executor shared by the Paho clients of a large pool, or null for Paho's own threads
      */
-    public Publisher(int time, String brokerURL, int instance, int masterId) {
+    public Publisher(int time, String brokerURL, int instance, int masterId, int window, boolean binary, CommsExecutor comms) {
         this.TIME = time;
         this.BROKER_URL = brokerURL;
         this.instance = instance;
         this.MASTER = masterId;
+        this.window = window;
+        this.binary = binary;
+        this.comms = comms;
+        MetricsRegistry.Group group = nodeId == null
+                ? registry.group("publisher", "instance", Integer.toString(instance))
+                : registry.group("publisher", "node", nodeId, "instance", Integer.toString(instance));
+        group.gauge("experiment_records", "Records published in the current experiment", records::get);
+        this.metrics = new PublishMetrics(group);
         if (instance == MASTER) {
             doneLatch = new CountDownLatch(masterId);
             System.out.println("Master Instance pub-" + instance + " created!");
@@ -56,27 +110,117 @@ public class Publisher {
      */
     public void start() {
         try {
-            MqttClient client = new MqttClient(BROKER_URL, CLIENT_ID_PREFIX + instance, new MemoryPersistence());
-            // Set up connection options with increased max inflight messages
-            MqttConnectOptions connOpts = new MqttConnectOptions();
-            connOpts.setMaxInflight(1000); // Set the max inflight messages to a higher value
-            connOpts.setAutomaticReconnect(true); // Enable automatic reconnection
-            connOpts.setCleanSession(true);
-
-            client.connect(connOpts);
+            MqttClient client = null;
+            PublishEngine engine = null;
+            awaitConnectSlot();
+            long connectStart = System.nanoTime();
+            try {
+                if (window > 0 && this.instance != this.MASTER) {
+                    // Workers in async mode pipeline their publishes instead of waiting for each round trip
+                    engine = connect(new AsyncPublishEngine(BROKER_URL, clientId(Integer.toString(instance)), window, comms, new MemoryPersistence(), metrics), true);
+                } else {
+                    client = connect(clientId(Integer.toString(instance)), new MemoryPersistence(), true);
+                }
+                connectNanos[instance] = System.nanoTime() - connectStart;
+            } catch (MqttException e) {
+                if (instance == MASTER) {
+                    throw e;
+                }
+                // a worker stays in the pool and connects again for the next experiment it takes part in
+                System.err.println("pub-" + instance + " could not connect: " + e.getMessage());
+            } finally {
+                connectedLatch.countDown();
+            }
 
-            // Subscribe to request topics if this is the master publisher
+            // Subscribe to the experiment config if this is the master publisher
             if (this.instance == this.MASTER){
-                client.subscribe(REQUEST_INSTANCE_COUNT, 2, this::handleRequest);
-                client.subscribe(REQUEST_QOS, 2, this::handleRequest);
-                client.subscribe(REQUEST_DELAY, 2, this::handleRequest);
-                client.subscribe(READY_TOPIC, 2, this::handleReady);
+                MqttClient control = client;
+                client.subscribe(REQUEST_EXPERIMENT, 2, (topic, message) -> handleExperiment(control, message));
+                if (nodeId == null) {
+                    client.subscribe(READY_TOPIC, 2, this::handleReady);
+                } else {
+                    // Part of a multi-process pool, the coordinator turns the ready signal into a timed start
+                    if (nodeCount > 0) {
+                        new PoolCoordinator(client, nodeCount).start();
+                    }
+                    joinPool(client);
+                    client.subscribe(PoolCoordinator.START_TOPIC, 2, this::handleStart);
+                }
+                // Let the Analyser measure the offset between our clock and its own, for the instances we run
+                ClockSync.respondTo(client, instanceBase + 1, instanceBase + (nodeId == null ? MASTER : MASTER - 1));
             }
 
 
+            // The connection messages are published on, which differs from the master's control connection
+            // once an experiment asks for another protocol, session or store
+            MqttClient publisher = client;
+            // null while the instance has no usable connection
+            String connection = client != null || engine != null ? MQTT_V3 + "/" + CLEAN_SESSION + "/" + MEMORY_STORE : null;
+            int aliases = 0; // the topic aliases the broker accepts on a v5 connection
+            Preparation preparation = FIRST;
             while (true) {
+                // Wait for the next experiment config
+                preparation = preparation.next.get();
+                ExperimentConfig experiment = preparation.config;
+
+                // In a multi-process pool the instances are numbered across all nodes
+                // and only the standalone master publishes itself
+                int id = instanceBase + instance;
+                boolean active = id <= experiment.instanceCount() && (nodeId == null || instance != MASTER);
+                String store = experiment.store();
+                boolean v5 = experiment.protocol() == MQTT_V5;
+                if (active) {
+                    System.out.println("actIns: " + experiment.instanceCount() +", instance: "+ id + ", qos: " + experiment.qos()
+                            + ", delay: " + experiment.delay() + ", payloadSize: " + experiment.payloadSize());
+                    // Reconnect before the config is acknowledged if the experiment asks for another protocol, session or store,
+                    // so the Analyser's ready signal, and with it the measurement, waits for the connection.
+                    // Paho never frees a v5 topic alias, so every v5 experiment gets a fresh connection for its topics
+                    String wanted = experiment.protocol() + "/" + experiment.session() + "/" + store;
+                    if (!wanted.equals(connection) || v5) {
+                        boolean cleanSession = !experiment.session().equals(PERSISTENT_SESSION);
+                        // the master keeps its control connection and publishes on a second one
+                        String dataId = clientId(instance == MASTER ? instance + "-data" : Integer.toString(instance));
+                        try {
+                            connection = null;
+                            PublishEngine oldEngine = engine;
+                            MqttClient oldPublisher = publisher != client || instance != MASTER ? publisher : null;
+                            engine = null;
+                            publisher = null;
+                            if (oldEngine != null) {
+                                oldEngine.close();
+                            } else if (oldPublisher != null) {
+                                release(oldPublisher);
+                            }
+                            if (v5) {
+                                // v5 always publishes through an engine, the broker's Receive Maximum caps its window
+                                V5PublishEngine v5Engine = connect(new V5PublishEngine(BROKER_URL, dataId, Math.max(1, window),
+                                        V5PublishEngine.persistence(store, persistenceDirectory), metrics), cleanSession);
+                                aliases = v5Engine.getTopicAliasMaximum();
+                                engine = v5Engine;
+                            } else if (window > 0 && instance != MASTER) {
+                                engine = connect(new AsyncPublishEngine(BROKER_URL, dataId, window, comms,
+                                        persistence(store, persistenceDirectory), metrics), cleanSession);
+                            } else {
+                                publisher = instance == MASTER && wanted.equals(MQTT_V3 + "/" + CLEAN_SESSION + "/" + MEMORY_STORE)
+                                        ? client
+                                        : connect(dataId, persistence(store, persistenceDirectory), cleanSession);
+                            }
+                            connection = wanted;
+                            System.out.println("pub-" + id + " reconnected with MQTT " + (v5 ? "5" : "3.1.1") + ", a " + experiment.session()
+                                    + " session and " + store + " persistence"
+                                    + (v5 ? ", window " + engine.getWindowSize() + ", " + aliases + " topic alias(es)" : ""));
+                        } catch (MqttException | RuntimeException e) {
+                            // the instance sits this experiment out and connects afresh for the next one
+                            System.err.println("pub-" + id + " could not connect for experiment " + experiment.version()
+                                    + ", it publishes nothing in it: " + e);
+                        }
+                    }
+                }
+                preparation.ready();
+
                 // Wait for start signal from all publisher threads
                 startLatch.await();
+                long experimentStart = System.nanoTime();
 
                 // reset startLatch for next experiment
                 if (instance == MASTER){
@@ -84,24 +228,115 @@ public class Publisher {
                 }
 
                 // Publish messages
-                if (instance <= activeInstances) {
-                    System.out.println("actIns: " + activeInstances +", instance: "+ instance + ", qos: " + qos + ", delay: " + delay);
+                if (active && connection != null) {
+                    // Everything the hot loop needs is built once per experiment
+                    int qos = experiment.qos();
+                    int delay = experiment.delay();
+                    int payloadSize = experiment.payloadSize();
+                    double rate = experiment.rate();
+                    // The messages go round-robin over the topics, a single topic keeps the plain topic
+                    String[] topics = new String[experiment.topics()];
+                    int[] topicLengths = new int[topics.length];
+                    for (int k = 0; k < topics.length; k++) {
+                        topics[k] = topics.length == 1 ? PayloadEncoder.topic(id, qos, delay) : PayloadEncoder.topic(id, qos, delay, k);
+                        topicLengths[k] = topics[k].length(); // ASCII
+                    }
+                    int topicAliases = v5 ? aliases : 0;
+                    long published = 0; // MQTT messages published on the connection in this experiment
+                    // the header bytes are summed here and stored once the experiment is over
+                    long headers = 0;
+                    long headersV311 = 0;
+                    // Batches always carry binary records, every record keeps its sequence number and send time
+                    int batchCapacity = BinaryBatch.capacity(experiment.batchSize(), experiment.batchBytes(), Math.max(BinaryPayload.LENGTH, payloadSize));
+                    boolean batching = batchCapacity > 1;
+                    long lingerNanos = experiment.linger() * 1_000_000L;
+                    PayloadEncoder encoder = new PayloadEncoder(qos, payloadSize, batchCapacity);
+                    if (engine != null) {
+                        engine.prepare(qos, payloadSize, batchCapacity);
+                    }
+                    if (batching) {
+                        System.out.println("pub-" + id + " batching up to " + batchCapacity + " records per message"
+                                + (lingerNanos > 0 ? ", linger " + experiment.linger() + " ms" : ""));
+                    }
+                    PayloadEncoder slot = null; // held from the first record of a batch until it is published
+                    long batchStartNanos = 0;
+                    long sequence = 0;
+                    records.set(0);
                     long endTime = System.currentTimeMillis() + TIME * 1000; // convert s to ms
+                    // Open-loop pacing: every message has an intended send time on a fixed schedule,
+                    // instances are phase-shifted so they don't all fire at the same instant
+                    long intervalNanos = rate > 0 ? Math.max(1, Math.round(1e9 / rate)) : 0;
+                    long endNanos = System.nanoTime() + TIME * 1_000_000_000L;
+                    long intendedNanos = System.nanoTime() + (id - 1) * intervalNanos / Math.max(1, experiment.instanceCount());
+                    if (intervalNanos > 0) {
+                        System.out.println("pub-" + id + " open-loop at " + rate + " msg/s");
+                    }
 
                     while (System.currentTimeMillis() < endTime) {
-                        String topic = String.format("counter/%d/%d/%d", instance, qos, delay);
-                        // String message = Long.toString(this.localCounter);
-                        String message = Long.toString(globalCounter.get());
-                        MqttMessage mqttMessage = new MqttMessage(message.getBytes());
-                        mqttMessage.setQos(qos);
-                        try {
-                            client.publish(topic, mqttMessage);
-                        } catch (MqttException e) {
-                            e.printStackTrace();
+                        if (intervalNanos > 0) {
+                            if (intendedNanos >= endNanos) {
+                                break;
+                            }
+                            // a late publisher doesn't wait, it catches up on the missed schedule
+                            waitUntil(intendedNanos);
+                        }
+                        if (slot == null) {
+                            slot = engine != null ? engine.acquire() : encoder;
+                        }
+                        long counter = globalCounter.get();
+                        // stamp the intended time in open-loop mode so latency includes any time spent behind schedule
+                        long sendNanos = intervalNanos > 0 ? intendedNanos : System.nanoTime();
+                        MqttMessage message;
+                        if (batching) {
+                            if (slot.getBatched() == 0) {
+                                batchStartNanos = sendNanos;
+                            }
+                            boolean full = slot.append(id, sequence, counter, sendNanos);
+                            // Send early rather than make the oldest record wait past the linger time for the next one
+                            long nextNanos = intervalNanos > 0 ? intendedNanos + intervalNanos : System.nanoTime() + delay * 1_000_000L;
+                            boolean lingered = lingerNanos > 0 && nextNanos - batchStartNanos >= lingerNanos;
+                            message = full || lingered ? slot.batch() : null;
+                        } else {
+                            message = binary
+                                    ? slot.encode(id, sequence, counter, sendNanos)
+                                    : slot.encode(counter);
                         }
+                        if (message != null) {
+                            int topic = (int) (published++ % topics.length);
+                            int payloadLength = message.getPayload().length;
+                            headers += headerBytes(topic, topicLengths[topic], published <= topics.length, experiment.protocol(), topicAliases, qos, payloadLength);
+                            headersV311 += PublishHeaders.v311(topicLengths[topic], qos, payloadLength);
+                            publish(publisher, engine, topics[topic], message, slot, metrics);
+                            slot = null;
+                        }
+                        sequence++;
+                        // an ordered store, no fence, the gauge may lag a message behind
+                        records.lazySet(sequence);
                         globalCounter.incrementAndGet();
-                        Thread.sleep(delay);
+                        if (intervalNanos > 0) {
+                            intendedNanos += intervalNanos;
+                        } else {
+                            Thread.sleep(delay);
+                        }
+                    }
+
+                    // Send the last batch, however few records it holds
+                    if (slot != null) {
+                        int topic = (int) (published++ % topics.length);
+                        MqttMessage message = slot.batch();
+                        int payloadLength = message.getPayload().length;
+                        headers += headerBytes(topic, topicLengths[topic], published <= topics.length, experiment.protocol(), topicAliases, qos, payloadLength);
+                        headersV311 += PublishHeaders.v311(topicLengths[topic], qos, payloadLength);
+                        publish(publisher, engine, topics[topic], message, slot, metrics);
                     }
+                    // Wait for the outstanding window to be acknowledged before reporting done
+                    if (engine != null) {
+                        engine.drain();
+                        System.out.println("pub-" + id + " acked: " + metrics.getAcked() + ", failed: " + metrics.getFailed());
+                    }
+                    publishCounts[instance] = sequence;
+                    headerBytes[instance] = headers;
+                    headerBytesV311[instance] = headersV311;
                 }
 
                 // Signal that this thread is done
@@ -111,6 +346,12 @@ public class Publisher {
 
                 // Reset counter and latch for next experiment
                 if (instance == MASTER) {
+                    String counts = publishCountsReport();
+                    printPublishRates();
+                    long headers = Arrays.stream(headerBytes).sum();
+                    long headersV311 = Arrays.stream(headerBytesV311).sum();
+                    Arrays.fill(headerBytes, 0);
+                    Arrays.fill(headerBytesV311, 0);
                     // Send the max counter value to the master publisher
                     long maxCounter = globalCounter.get();
                     // Reset counter and latch for next experiment
@@ -121,7 +362,7 @@ public class Publisher {
                     MqttMessage mqttMessage = new MqttMessage(message.getBytes());
                     mqttMessage.setQos(2);
                     try {
-                        publishComplete(maxCounter);
+                        publishComplete(client, maxCounter, System.nanoTime() - experimentStart, headers, headersV311, counts);
                     } catch (MqttException e) {
                         e.printStackTrace();
                     }
@@ -133,60 +374,398 @@ public class Publisher {
     }
 
     /**
-     * Handles the ready signal to start all publisher threads.
+     * Connects a blocking client. A client that fails to connect is closed, so it doesn't keep
+     * its persistence locked.
      *
-     * @param topic   the topic of the ready signal
-     * @param message the message containing the ready signal
+     * @param clientId     the client id
+     * @param persistence  the store of the client's in-flight QoS 1 and 2 messages
+     * @param cleanSession false to resume the session the broker and the persistence kept for the client id
+     * @return the connected client
+     * @throws MqttException if an error occurs while connecting
+     */
+    private MqttClient connect(String clientId, MqttClientPersistence persistence, boolean cleanSession) throws MqttException {
+        MqttClient client = new MqttClient(BROKER_URL, clientId, persistence);
+        // Set up connection options with increased max inflight messages
+        MqttConnectOptions connOpts = new MqttConnectOptions();
+        connOpts.setMaxInflight(1000); // Set the max inflight messages to a higher value
+        connOpts.setAutomaticReconnect(true); // Enable automatic reconnection
+        connOpts.setCleanSession(cleanSession);
+
+        try {
+            client.connect(connOpts);
+        } catch (MqttException | RuntimeException e) {
+            release(client, e);
+            throw e;
+        }
+        return client;
+    }
+
+    /**
+     * Connects a publish engine. An engine that fails to connect is closed, so it doesn't keep
+     * its persistence locked.
+     *
+     * @param engine       the engine
+     * @param cleanSession false to resume the session the broker and the persistence kept for the client id
+     * @return the connected engine
+     * @throws MqttException if an error occurs while connecting
+     */
+    private static <E extends PublishEngine> E connect(E engine, boolean cleanSession) throws MqttException {
+        try {
+            engine.connect(cleanSession);
+        } catch (MqttException | RuntimeException e) {
+            try {
+                engine.close();
+            } catch (MqttException | RuntimeException closing) {
+                e.addSuppressed(closing);
+            }
+            throw e;
+        }
+        return engine;
+    }
+
+    /**
+     * Disconnects a blocking client if it is connected and closes it, which releases its persistence.
+     *
+     * @param client the client
+     * @throws MqttException if an error occurs while disconnecting or closing
+     */
+    private static void release(MqttClient client) throws MqttException {
+        try {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Releases a client after a failure, adding any error while releasing it to the failure.
+     */
+    private static void release(MqttClient client, Exception failure) {
+        try {
+            release(client);
+        } catch (MqttException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Creates the client persistence of a store, see {@link #STORES}. Every store keeps its files
+     * in its own subdirectory, so the stores of the same client id don't see each other's messages.
+     *
+     * @param store     the name of the store
+     * @param directory the directory the stores keep their files in
+     * @return a new, unopened persistence
+     */
+    static MqttClientPersistence persistence(String store, Path directory) {
+        return switch (store) {
+            case "file" -> new MqttDefaultFilePersistence(directory.resolve(store).toString());
+            case "mmap" -> new MappedFilePersistence(directory.resolve(store));
+            case "mmap-sync" -> new MappedFilePersistence(directory.resolve(store), 1, 0, MappedFilePersistence.DEFAULT_SEGMENT_SIZE);
+            default -> new MemoryPersistence();
+        };
+    }
+
+    /**
+     * Computes the bytes a PUBLISH spends besides its payload as sent, see {@link PublishHeaders#v311}
+     * for what MQTT 3.1.1 would have sent. Paho gives the first {@code aliases} topics of a v5
+     * connection an alias, sends the topic with it on the topic's first message and only the alias
+     * from then on.
+     *
+     * @param topic         the index of the message's topic, the topics are published in index order first
+     * @param topicLength   the length of the topic in bytes
+     * @param first         true for the first message on the topic on this connection
+     * @param protocol      the MQTT version of the connection
+     * @param aliases       the topic aliases the broker accepts on the connection
+     * @param qos           the QoS level of the message
+     * @param payloadLength the length of the message's payload in bytes
+     * @return the bytes besides the payload
+     */
+    private static int headerBytes(int topic, int topicLength, boolean first, int protocol, int aliases, int qos, int payloadLength) {
+        if (protocol != MQTT_V5) {
+            return PublishHeaders.v311(topicLength, qos, payloadLength);
+        } else if (topic < aliases) {
+            return PublishHeaders.v5(first ? topicLength : 0, qos, payloadLength, PublishHeaders.TOPIC_ALIAS);
+        } else {
+            return PublishHeaders.v5(topicLength, qos, payloadLength, 0);
+        }
+    }
+
+    /**
+     * Publishes a message with the blocking client or the async engine, whichever this instance uses.
+     *
+     * @param client  the blocking client, or null in async mode
+     * @param engine  the async engine of either protocol, or null in blocking mode
+     * @param topic   the topic to publish to
+     * @param message the message to publish
+     * @param slot    the encoder of the message
+     * @param metrics the live metrics of the instance
+     */
+    private static void publish(MqttClient client, PublishEngine engine, String topic, MqttMessage message, PayloadEncoder slot,
+                                PublishMetrics metrics) {
+        metrics.onSent();
+        try {
+            if (engine != null) {
+                engine.publish(topic, message, slot);
+            } else {
+                // the blocking publish returns once the delivery is complete
+                long start = System.nanoTime();
+                client.publish(topic, message);
+                metrics.onAcked(System.nanoTime() - start);
+            }
+        } catch (MqttException e) {
+            metrics.onFailed();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for this instance's turn to connect, so that a large pool ramps up at the configured
+     * connect rate instead of flooding the broker with simultaneous CONNECTs.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    private void awaitConnectSlot() throws InterruptedException {
+        long slot = rampStartNanos + (instance - 1) * rampIntervalNanos;
+        long wait = slot - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Registers this node with the pool coordinator and waits for the range of global instance ids
+     * assigned to it. The coordinator may start after this node, so the registration is repeated
+     * until it is answered.
+     *
+     * @param client the connected MQTT client of the master
+     * @throws MqttException        if an error occurs while subscribing or publishing
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    private void joinPool(MqttClient client) throws MqttException, InterruptedException {
+        CountDownLatch assigned = new CountDownLatch(1);
+        client.subscribe(PoolCoordinator.ASSIGN_TOPIC_PREFIX + nodeId, 2, (topic, message) -> {
+            try {
+                instanceBase = Integer.parseInt(new String(message.getPayload()));
+            } catch (NumberFormatException e) {
+                // throwing would make Paho drop the connection, the registration is repeated
+                System.err.println("Ignoring malformed instance assignment: " + e.getMessage());
+                return;
+            }
+            assigned.countDown();
+        });
+        do {
+            MqttMessage registration = new MqttMessage((nodeId + "," + (MASTER - 1)).getBytes());
+            registration.setQos(2);
+            client.publish(PoolCoordinator.REGISTER_TOPIC, registration);
+        } while (!assigned.await(REGISTER_RETRY_MS, TimeUnit.MILLISECONDS));
+        System.out.println("Node " + nodeId + " joined the pool with instances " + (instanceBase + 1) + "-" + (instanceBase + MASTER - 1));
+    }
+
+    /**
+     * Waits until a System.nanoTime() deadline, parking for the bulk of the wait and spinning
+     * for the last stretch, since parking alone is too coarse for rates above a few thousand msg/s.
+     *
+     * @param deadlineNanos the deadline
+     */
+    private static void waitUntil(long deadlineNanos) {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Lists how many messages every instance published in the experiment that just finished.
+     *
+     * @return the counts as {@code id:count,...}, by global instance id
+     */
+    private String publishCountsReport() {
+        StringBuilder report = new StringBuilder();
+        for (int i = 1; i < publishCounts.length; i++) {
+            if (publishCounts[i] > 0) {
+                if (report.length() > 0) {
+                    report.append(',');
+                }
+                report.append(instanceBase + i).append(':').append(publishCounts[i]);
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * Prints the spread of the per-connection publish rates of the experiment that just finished.
+     */
+    private void printPublishRates() {
+        // the workers of this node that took part, instanceCount counts the instances of the whole pool
+        int count = Math.max(0, Math.min(config.instanceCount() - instanceBase, MASTER - 1));
+        if (count < 1) {
+            return;
+        }
+        long[] counts = Arrays.copyOfRange(publishCounts, 1, count + 1);
+        Arrays.fill(publishCounts, 0);
+        Arrays.sort(counts);
+        double mean = Arrays.stream(counts).average().orElse(0);
+        System.out.printf("Per-connection publish rate (msg/s) over %d connection(s): min %.1f, p50 %.1f, mean %.1f, p99 %.1f, max %.1f%n",
+                count, (double) counts[0] / TIME, (double) counts[count / 2] / TIME, mean / TIME,
+                (double) counts[Math.min(count - 1, (int) Math.ceil(count * 0.99) - 1)] / TIME, (double) counts[count - 1] / TIME);
+    }
+
+    /**
+     * Prints how fast the pool connected once every instance has tried to connect.
+     *
+     * @param instances the number of instances in the pool
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    private static void printConnectStats(int instances) throws InterruptedException {
+        connectedLatch.await();
+        double elapsedSec = (System.nanoTime() - rampStartNanos) / 1e9;
+        long[] times = Arrays.stream(connectNanos, 1, instances + 1).filter(t -> t > 0).sorted().toArray();
+        if (times.length == 0) {
+            System.err.println("No publisher instance could connect!");
+            return;
+        }
+        System.out.printf("Connected %d/%d client(s) in %.2f s (%.1f connects/s), connect time p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                times.length, instances, elapsedSec, times.length / elapsedSec,
+                times[times.length / 2] / 1e6, times[Math.min(times.length - 1, (int) Math.ceil(times.length * 0.99) - 1)] / 1e6,
+                times[times.length - 1] / 1e6);
+    }
+
+    /**
+     * Handles the experiment config: replaces the pool's config as a whole, hands it to the
+     * instances and acknowledges its version once every instance has connected for it, so the
+     * Analyser only sends the start signal once the pool is ready and no connect falls into the
+     * measured time. A config sent again because the acknowledgement was slow is acknowledged again.
+     *
+     * @param client  the master's control client
+     * @param message the message containing the config, see {@link ExperimentConfig#encode()}
      */
-    private void handleRequest(String topic, MqttMessage message) {
-        String payload = new String(message.getPayload());
-        switch (topic) {
-            case REQUEST_QOS:
-                qos = Integer.parseInt(payload);
-                break;
-            case REQUEST_DELAY:
-                delay = Integer.parseInt(payload);
-                break;
-            case REQUEST_INSTANCE_COUNT:
-                activeInstances = Integer.parseInt(payload);
-                break;
+    private void handleExperiment(MqttClient client, MqttMessage message) {
+        ExperimentConfig received;
+        try {
+            received = ExperimentConfig.decode(new String(message.getPayload()));
+        } catch (IllegalArgumentException e) {
+            // left unacknowledged, throwing would make Paho drop the connection
+            System.err.println("Ignoring malformed experiment config: " + e.getMessage());
+            return;
+        }
+        Preparation preparation = latest;
+        if (received.version() != preparation.config.version()) {
+            config = received;
+            latest = new Preparation(received, MASTER);
+            preparation.next.complete(latest);
+            preparation = latest;
         }
+        // Don't hold up the Paho callback thread while the instances connect and the acknowledgement is delivered
+        String topic = nodeId == null ? ACK_TOPIC : PoolCoordinator.ACK_TOPIC_PREFIX + nodeId;
+        MqttMessage ack = new MqttMessage(Long.toString(received.version()).getBytes());
+        ack.setQos(2);
+        preparation.prepared.thenRunAsync(() -> {
+            try {
+                client.publish(topic, ack);
+            } catch (MqttException e) {
+                e.printStackTrace();
+            }
+        });
     }
 
     /**
-     * Handles the ready signal to start all publisher threads.
+     * Handles the ready signal to start all publisher threads. The signal carries the version of
+     * the config it starts, a signal for any other config is ignored, so a late one can't start
+     * an experiment the pool isn't ready for.
      *
      * @param topic   the topic of the ready signal
-     * @param message the message containing the ready signal
+     * @param message the message containing the version of the config to start
      */
     private void handleReady(String topic, MqttMessage message) {
+        long version;
+        try {
+            version = Long.parseLong(new String(message.getPayload()));
+        } catch (NumberFormatException e) {
+            // throwing would make Paho drop the connection
+            System.err.println("Ignoring malformed ready signal: " + e.getMessage());
+            return;
+        }
+        if (version != config.version()) {
+            System.err.println("Ignoring the ready signal of experiment " + version + ", the pool has the config of experiment " + config.version());
+            return;
+        }
         // Signal all threads to start when receiving the ready message
         startLatch.countDown();
     }
 
-    private void publishComplete(long maxCounter) throws MqttException {
-        MqttClient client = new MqttClient(BROKER_URL, CLIENT_ID_PREFIX + "master", new MemoryPersistence());
-        MqttConnectOptions connOpts = new MqttConnectOptions();
-        connOpts.setMaxInflight(1000);
-        connOpts.setAutomaticReconnect(true);
-        connOpts.setCleanSession(true);
-
-        client.connect(connOpts);
-
-        if (!client.isConnected()) {
-            System.out.println("Client not connected, attempting to reconnect...");
-            client.reconnect();
+    /**
+     * Handles the coordinator's start signal, which carries the wall-clock time at which every node
+     * of a multi-process pool starts publishing. Like the ready signal, a start signal for any other
+     * config than the pool's is ignored.
+     *
+     * @param topic   the topic of the start signal
+     * @param message the message containing the version of the config to start and the start time
+     *                in epoch milliseconds, {@code version,startMillis}
+     */
+    private void handleStart(String topic, MqttMessage message) {
+        String[] fields = new String(message.getPayload()).split(",");
+        long version;
+        long startMillis;
+        try {
+            if (fields.length != 2) {
+                throw new NumberFormatException("Expected version,startMillis");
+            }
+            version = Long.parseLong(fields[0]);
+            startMillis = Long.parseLong(fields[1]);
+        } catch (NumberFormatException e) {
+            // throwing would make Paho drop the connection
+            System.err.println("Ignoring malformed start signal: " + e.getMessage());
+            return;
+        }
+        if (version != config.version()) {
+            System.err.println("Ignoring the start signal of experiment " + version + ", the pool has the config of experiment " + config.version());
+            return;
         }
+        long wait = startMillis - System.currentTimeMillis();
+        // Don't hold up the Paho callback thread while waiting for the start time
+        CountDownLatch latch = startLatch;
+        CompletableFuture.delayedExecutor(Math.max(0, wait), TimeUnit.MILLISECONDS).execute(latch::countDown);
+    }
 
+    /**
+     * Publishes the complete signal with the experiment's totals, as
+     * {@code maxCounter,elapsedNanos,headerBytes,headerBytesV311;id:count,...}.
+     * A node of a multi-process pool reports to the coordinator on {@code complete/<nodeId>} instead.
+     *
+     * The master's control connection publishes it, so no connection is set up per experiment.
+     *
+     * @param client       the master's control client
+     * @param maxCounter   the total number of messages published
+     * @param elapsedNanos the time from the start signal until every instance finished
+     * @param headers      the PUBLISH bytes besides the payloads the instances sent
+     * @param headersV311  the PUBLISH bytes besides the payloads MQTT 3.1.1 would have sent for the same messages
+     * @param counts       the number of messages published by each instance, from {@link #publishCountsReport()}
+     * @throws MqttException if an error occurs while publishing
+     */
+    private void publishComplete(MqttClient client, long maxCounter, long elapsedNanos, long headers, long headersV311,
+                                 String counts) throws MqttException {
         System.out.println("Publishing complete message...");
-        String message = Long.toString(maxCounter);
+        String message = maxCounter + "," + elapsedNanos + "," + headers + "," + headersV311 + ";" + counts;
         MqttMessage mqttMessage = new MqttMessage(message.getBytes());
         mqttMessage.setQos(2);
-        client.publish(COMPLETE, mqttMessage);
+        client.publish(nodeId == null ? COMPLETE : PoolCoordinator.REPORT_TOPIC_PREFIX + nodeId, mqttMessage);
         System.out.println("Complete message sent!");
+    }
 
-        client.disconnect();
-        client.close();
+    /**
+     * Builds a client id that is unique across the nodes of a multi-process pool.
+     *
+     * @param suffix the instance number or role of the client
+     * @return the client id
+     */
+    private static String clientId(String suffix) {
+        return CLIENT_ID_PREFIX + (nodeId == null ? "" : nodeId + "-") + suffix;
     }
 
     /**
@@ -198,6 +777,12 @@ public class Publisher {
         int time = 60; // default value 60 seconds
         String brokerUrl = "tcp://localhost:1883"; // default url
         int workerNum = 5; // default worker number
+        int window = 0; // default blocking publish
+        boolean binary = false; // default ASCII counter payload
+        boolean virtual = false; // default one platform thread per instance
+        int connectRate = 0; // default connect all instances at once
+        boolean embedded = false; // default external broker
+        int metricsPort = -1; // default no metrics endpoint
         // read command line arguments
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -225,6 +810,73 @@ public class Publisher {
                         return;
                     }
                     break;
+                case "-a":
+                    if (i + 1 < args.length) {
+                        window = Integer.parseInt(args[++i]);
+                    } else {
+                        System.err.println("Missing value for -a");
+                        return;
+                    }
+                    break;
+                case "-f":
+                    if (i + 1 < args.length) {
+                        String format = args[++i];
+                        if (!format.equals("ascii") && !format.equals("binary")) {
+                            System.err.println("Payload format must be ascii or binary!");
+                            return;
+                        }
+                        binary = format.equals("binary");
+                    } else {
+                        System.err.println("Missing value for -f");
+                        return;
+                    }
+                    break;
+                case "-v":
+                    virtual = true;
+                    break;
+                case "-c":
+                    if (i + 1 < args.length) {
+                        connectRate = Integer.parseInt(args[++i]);
+                    } else {
+                        System.err.println("Missing value for -c");
+                        return;
+                    }
+                    break;
+                case "-e":
+                    embedded = true;
+                    break;
+                case "-n":
+                    if (i + 1 < args.length) {
+                        nodeId = args[++i];
+                    } else {
+                        System.err.println("Missing value for -n");
+                        return;
+                    }
+                    break;
+                case "-N":
+                    if (i + 1 < args.length) {
+                        nodeCount = Integer.parseInt(args[++i]);
+                    } else {
+                        System.err.println("Missing value for -N");
+                        return;
+                    }
+                    break;
+                case "-P":
+                    if (i + 1 < args.length) {
+                        persistenceDirectory = Path.of(args[++i]);
+                    } else {
+                        System.err.println("Missing value for -P");
+                        return;
+                    }
+                    break;
+                case "-m":
+                    if (i + 1 < args.length) {
+                        metricsPort = Integer.parseInt(args[++i]);
+                    } else {
+                        System.err.println("Missing value for -m");
+                        return;
+                    }
+                    break;
             }
         }
         System.out.println("Publisher Pool started with " + time + " second(s) for each experiment, using broker: " + brokerUrl);
@@ -234,11 +886,121 @@ public class Publisher {
             System.err.println("Number of worker instance must be at least 1!");
             return;
         }
+        if (window < 0) {
+            System.err.println("In-flight window must be a non-negative integer!");
+            return;
+        }
+        if (connectRate < 0) {
+            System.err.println("Connect rate must be a non-negative integer!");
+            return;
+        }
+        if (nodeCount < 0) {
+            System.err.println("Node count must be a non-negative integer!");
+            return;
+        }
+        if (metricsPort < -1 || metricsPort > 65535) {
+            System.err.println("Metrics port must be in range [0, 65535]!");
+            return;
+        }
+        if (nodeId != null && (nodeId.isEmpty() || nodeId.contains("/") || nodeId.contains(",")
+                || nodeId.contains("+") || nodeId.contains("#"))) {
+            System.err.println("Node id must not be empty or contain '/', ',', '+' or '#'!");
+            return;
+        }
+        if (nodeCount > 0 && nodeId == null) {
+            nodeId = "coordinator";
+        }
+        if (nodeId != null) {
+            System.out.println("Node " + nodeId + " of a multi-process pool" + (nodeCount > 0 ? ", coordinating " + nodeCount + " node(s)" : ""));
+        }
+        if (metricsPort >= 0) {
+            try {
+                int port = registry.startHttp(metricsPort);
+                System.out.println("Serving live metrics on http://127.0.0.1:" + port + MetricsRegistry.PATH);
+            } catch (IOException e) {
+                System.err.println("Could not start the metrics endpoint: " + e.getMessage());
+                return;
+            }
+        }
+        if (embedded) {
+            // Serve the pool from an in-process broker, the Analyser connects to it on the same URL
+            try {
+                EmbeddedBroker.startFor(brokerUrl);
+            } catch (IOException e) {
+                System.err.println("Could not start the embedded broker: " + e.getMessage());
+                return;
+            }
+        }
+        CommsExecutor comms = null;
+        if (virtual) {
+            // A blocking publish would pin the virtual thread's carrier in Object.wait(),
+            // the async engine only blocks on j.u.c. locks, so a window of 1 keeps blocking semantics
+            window = Math.max(window, 1);
+            comms = new CommsExecutor(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+            System.out.println("Workers run on virtual threads");
+        }
+        if (window > 0) {
+            System.out.println("Workers publish asynchronously with an in-flight window of " + window);
+        }
+        connectedLatch = new CountDownLatch(masterInstance);
+        connectNanos = new long[masterInstance + 1];
+        publishCounts = new long[masterInstance + 1];
+        headerBytes = new long[masterInstance + 1];
+        headerBytesV311 = new long[masterInstance + 1];
+        MetricsRegistry.Group pool = nodeId == null ? registry.group("pool") : registry.group("pool", "node", nodeId);
+        pool.gauge("experiment_records", "Records published by the pool in the current experiment", globalCounter::get);
+        pool.gauge("active_instances", "Instances publishing in the current experiment", () -> config.instanceCount());
+        rampIntervalNanos = connectRate > 0 ? 1_000_000_000L / connectRate : 0;
+        rampStartNanos = System.nanoTime();
+        if (connectRate > 0) {
+            System.out.println("Ramping up connections at " + connectRate + " connects/s");
+        }
+        Thread.Builder builder = virtual ? Thread.ofVirtual().name("pub-", 1) : Thread.ofPlatform().name("pub-", 1);
+        Thread[] threads = new Thread[masterInstance];
         for (int i = 1; i <= masterInstance; i++) {
             int instance = i;
             int finalTime = time;
             String finalBrokerUrl = brokerUrl;
-            new Thread(() -> new Publisher(finalTime, finalBrokerUrl, instance, masterInstance).start()).start();
+            int finalWindow = window;
+            boolean finalBinary = binary;
+            CommsExecutor finalComms = comms;
+            threads[i - 1] = builder.start(() -> new Publisher(finalTime, finalBrokerUrl, instance, masterInstance, finalWindow, finalBinary, finalComms).start());
+        }
+        try {
+            printConnectStats(masterInstance);
+            // virtual threads are daemons, keep the JVM alive for as long as the pool runs
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * An experiment config on its way to the instances. Every instance waits for it, gets its
+     * connection ready for it and reports with {@link #ready()}, {@code prepared} completes once
+     * all have. {@code next} completes with the config that follows, so an instance that is still
+     * busy with the last experiment or connecting finds every config in the order they arrived.
+     */
+    private static final class Preparation {
+        private final ExperimentConfig config;
+        private final AtomicInteger remaining;
+        private final CompletableFuture<Void> prepared = new CompletableFuture<>();
+        private final CompletableFuture<Preparation> next = new CompletableFuture<>();
+
+        private Preparation(ExperimentConfig config, int instances) {
+            this.config = config;
+            this.remaining = new AtomicInteger(instances);
+        }
+
+        /**
+         * Reports one instance ready for the config.
+         */
+        private void ready() {
+            if (remaining.decrementAndGet() == 0) {
+                prepared.complete(null);
+            }
         }
     }
 }
@@ -0,0 +1,118 @@
+package com.jrmh;
+
+import java.util.Arrays;
+
+/**
+ * The RepetitionSummary class collects a few metrics over the repetitions of one experiment and
+ * reports their mean, sample standard deviation and the half-width of the 95% confidence interval
+ * of the mean, from Student's t-distribution with one degree of freedom less than the repetitions.
+ * A repetition that has no value for a metric, such as a run too short for a steady state, is left
+ * out of that metric only.
+ */
+public class RepetitionSummary {
+    // two-sided 95% quantiles of Student's t-distribution for 1 to 30 degrees of freedom
+    private static final double[] T_95 = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+    private static final double Z_95 = 1.960;
+
+    private final String[] metrics;
+    private final double[][] values;
+    private final int[] counts;
+
+    /**
+     * Constructs a RepetitionSummary instance.
+     *
+     * @param repetitions the number of repetitions of the experiment
+     * @param metrics     the column name of each metric, with {@code %s} where Mean, Stddev or CI95 goes
+     */
+    public RepetitionSummary(int repetitions, String... metrics) {
+        this.metrics = metrics;
+        this.values = new double[metrics.length][repetitions];
+        this.counts = new int[metrics.length];
+    }
+
+    /**
+     * Clears the values for the next experiment.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+    }
+
+    /**
+     * Adds the values of one repetition.
+     *
+     * @param values the value of each metric in constructor order, NaN where the repetition has none
+     */
+    public void add(double... values) {
+        for (int metric = 0; metric < metrics.length; metric++) {
+            if (!Double.isNaN(values[metric]) && counts[metric] < this.values[metric].length) {
+                this.values[metric][counts[metric]++] = values[metric];
+            }
+        }
+    }
+
+    /**
+     * @return the CSV header of the summary columns
+     */
+    public String header() {
+        StringBuilder header = new StringBuilder();
+        for (String metric : metrics) {
+            if (!header.isEmpty()) {
+                header.append(',');
+            }
+            header.append(String.format(metric, "Mean")).append(',')
+                    .append(String.format(metric, "Stddev")).append(',')
+                    .append(String.format(metric, "CI95"));
+        }
+        return header.toString();
+    }
+
+    /**
+     * Formats the summary as CSV cells, see {@link #header()}. The standard deviation and the
+     * confidence interval need at least two values and are empty otherwise.
+     *
+     * @return the cells
+     */
+    public String columns() {
+        StringBuilder columns = new StringBuilder();
+        for (int metric = 0; metric < metrics.length; metric++) {
+            if (metric > 0) {
+                columns.append(',');
+            }
+            int n = counts[metric];
+            if (n == 0) {
+                columns.append(",,");
+                continue;
+            }
+            double mean = 0;
+            for (int i = 0; i < n; i++) {
+                mean += values[metric][i];
+            }
+            mean /= n;
+            columns.append(String.format("%.3f", mean)).append(',');
+            if (n < 2) {
+                columns.append(',');
+                continue;
+            }
+            double squares = 0;
+            for (int i = 0; i < n; i++) {
+                double deviation = values[metric][i] - mean;
+                squares += deviation * deviation;
+            }
+            double stddev = Math.sqrt(squares / (n - 1));
+            columns.append(String.format("%.3f,%.3f", stddev, studentT95(n - 1) * stddev / Math.sqrt(n)));
+        }
+        return columns.toString();
+    }
+
+    /**
+     * @param degreesOfFreedom the degrees of freedom, at least 1
+     * @return the two-sided 95% quantile of Student's t-distribution
+     */
+    static double studentT95(int degreesOfFreedom) {
+        // beyond the table the quantile approaches the normal one roughly as 2.4 / degrees of freedom
+        return degreesOfFreedom <= T_95.length ? T_95[degreesOfFreedom - 1] : Z_95 + 2.4 / degreesOfFreedom;
+    }
+}
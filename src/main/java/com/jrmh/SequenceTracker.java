@@ -0,0 +1,160 @@
+package com.jrmh;
+
+import java.util.Arrays;
+
+/**
+ * The SequenceTracker follows the sequence numbers of one publisher and separates loss, duplicates
+ * and true reordering. It keeps a sliding window of {@link #WINDOW} bits over the most recent
+ * sequence numbers, one bit per number that has arrived, so every message is accounted in O(1)
+ * with a fixed memory footprint:
+ * <ul>
+ *     <li>a number above the highest seen opens a gap when it skips numbers,</li>
+ *     <li>a number inside the window whose bit is already set is a duplicate,</li>
+ *     <li>a number inside the window whose bit is clear fills a hole and is reordered by
+ *     {@code highest - sequence},</li>
+ *     <li>a number that has slid out of the window can no longer be told apart from a duplicate,
+ *     it is counted as a late reorder.</li>
+ * </ul>
+ */
+public class SequenceTracker {
+    public static final int WINDOW = 2048;
+    private static final int WINDOW_MASK = WINDOW - 1;
+
+    private final long[] bits = new long[WINDOW / 64];
+    private long highest = -1;
+    private long received = 0;
+    private long duplicates = 0;
+    private long reordered = 0;
+    private long late = 0;
+    private long gaps = 0;
+    private long maxReorderDistance = 0;
+
+    /**
+     * Records the arrival of a sequence number.
+     *
+     * @param sequence the non-negative sequence number
+     */
+    public void record(long sequence) {
+        received++;
+        if (sequence > highest) {
+            if (sequence > highest + 1) {
+                gaps++;
+            }
+            // clear the bits of the numbers the window slides over, each number is cleared once
+            long from = Math.max(highest + 1, sequence - WINDOW + 1);
+            for (long s = from; s < sequence; s++) {
+                clear(s);
+            }
+            set(sequence);
+            highest = sequence;
+            return;
+        }
+        long distance = highest - sequence;
+        if (distance >= WINDOW) {
+            late++;
+            reordered++;
+        } else if (isSet(sequence)) {
+            duplicates++;
+            return;
+        } else {
+            set(sequence);
+            reordered++;
+        }
+        if (distance > maxReorderDistance) {
+            maxReorderDistance = distance;
+        }
+    }
+
+    /**
+     * Clears the tracker for a new experiment, keeping the allocated window.
+     */
+    public void reset() {
+        Arrays.fill(bits, 0);
+        highest = -1;
+        received = 0;
+        duplicates = 0;
+        reordered = 0;
+        late = 0;
+        gaps = 0;
+        maxReorderDistance = 0;
+    }
+
+    /**
+     * Adds the counts of another tracker of the same publisher, to report the trackers of several
+     * consumers together. The windows are not merged, so the sum must not record any further.
+     *
+     * @param other the tracker to add
+     */
+    public void add(SequenceTracker other) {
+        highest = Math.max(highest, other.highest);
+        received += other.received;
+        duplicates += other.duplicates;
+        reordered += other.reordered;
+        late += other.late;
+        gaps += other.gaps;
+        maxReorderDistance = Math.max(maxReorderDistance, other.maxReorderDistance);
+    }
+
+    /**
+     * @return the number of messages the publisher sent up to the highest sequence number seen
+     */
+    public long getExpected() {
+        return highest + 1;
+    }
+
+    /**
+     * @return the number of arrivals, duplicates included
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return the number of distinct sequence numbers that arrived
+     */
+    public long getUnique() {
+        return received - duplicates;
+    }
+
+    /**
+     * @return the number of sequence numbers below the highest seen that never arrived
+     */
+    public long getLost() {
+        return Math.max(0, getExpected() - getUnique());
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getReordered() {
+        return reordered;
+    }
+
+    public long getLate() {
+        return late;
+    }
+
+    public long getGaps() {
+        return gaps;
+    }
+
+    public long getMaxReorderDistance() {
+        return maxReorderDistance;
+    }
+
+    private boolean isSet(long sequence) {
+        int index = (int) (sequence & WINDOW_MASK);
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private void set(long sequence) {
+        int index = (int) (sequence & WINDOW_MASK);
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private void clear(long sequence) {
+        int index = (int) (sequence & WINDOW_MASK);
+        bits[index >>> 6] &= ~(1L << index);
+    }
+}
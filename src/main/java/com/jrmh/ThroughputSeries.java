@@ -0,0 +1,258 @@
+package com.jrmh;
+
+import java.util.Arrays;
+
+/**
+ * The ThroughputSeries class buckets the messages of an experiment into one-second intervals, with
+ * the message count and a latency and an inter-message gap histogram per second, and finds the steady-state window in which
+ * the experiment is neither warming up (JIT compilation, connections still being set up) nor
+ * draining after the publishers stopped.
+ * <p>
+ * The window is found with the MSER rule (Marginal Standard Error Rule, White 1997): the start is
+ * the truncation point that minimises the standard error of the mean of the remaining per-second
+ * counts, and the end is found the same way on the remaining seconds in reverse. Each truncation
+ * is limited to half of the series, so a run that is never stable is kept rather than cut to a few
+ * seconds.
+ * <p>
+ * Like {@link MessageStats} it is written by the analysis thread and read once the ring is drained.
+ */
+public class ThroughputSeries {
+    public static final int MIN_STEADY_SECONDS = 3;
+    private static final long SECOND_NANOS = 1_000_000_000L;
+    // the precision of MessageStats, the window's percentiles stand in for the whole run's in result.csv;
+    // three significant digits take ~250 KB per histogram, so a minute of the series ~30 MB per consumer
+    private static final long MAX_LATENCY_NANOS = 600_000_000_000L; // 10 minutes
+    private static final long MAX_GAP_NANOS = 600_000_000_000L; // 10 minutes
+    private static final int LATENCY_DIGITS = 3;
+
+    private long originNanos;
+    private long[] counts = new long[64];
+    private Histogram[] latencies = new Histogram[64];
+    private Histogram[] gaps = new Histogram[64];
+    private int seconds = 0;
+    // the second being filled, to skip the division for consecutive messages of the same second
+    private int current = -1;
+    private long currentStart = Long.MAX_VALUE;
+    private long currentEnd = Long.MIN_VALUE;
+
+    /**
+     * The steady-state window, in whole seconds since the start of the experiment.
+     *
+     * @param from the first second of the window
+     * @param to   the second after the last second of the window
+     */
+    public record Window(int from, int to) {
+        /**
+         * @return the length of the window in seconds
+         */
+        public int length() {
+            return to - from;
+        }
+
+        /**
+         * @param second a second since the start of the experiment
+         * @return true if the second is in the window
+         */
+        public boolean contains(int second) {
+            return second >= from && second < to;
+        }
+    }
+
+    /**
+     * Clears the series for a new experiment, keeping the allocated histograms.
+     *
+     * @param originNanos the System.nanoTime() at which the experiment starts
+     */
+    public void reset(long originNanos) {
+        for (int second = 0; second < seconds; second++) {
+            counts[second] = 0;
+            latencies[second].reset();
+            gaps[second].reset();
+        }
+        this.originNanos = originNanos;
+        this.seconds = 0;
+        this.current = -1;
+        this.currentStart = Long.MAX_VALUE;
+        this.currentEnd = Long.MIN_VALUE;
+    }
+
+    /**
+     * Records a message.
+     *
+     * @param receiveNanos  the System.nanoTime() at which the message was received
+     * @param latencyNanos  the publish-to-receive latency, or -1 if the payload carries no send time
+     * @param gapNanos      the gap to the message of the previous counter, or -1 if it does not follow one
+     */
+    public void record(long receiveNanos, long latencyNanos, long gapNanos) {
+        if (receiveNanos < currentStart || receiveNanos >= currentEnd) {
+            if (receiveNanos < originNanos) {
+                return; // a straggler of the previous experiment
+            }
+            current = second(receiveNanos);
+            currentStart = originNanos + current * SECOND_NANOS;
+            currentEnd = currentStart + SECOND_NANOS;
+        }
+        counts[current]++;
+        if (latencyNanos >= 0) {
+            latencies[current].record(latencyNanos);
+        }
+        if (gapNanos >= 0) {
+            gaps[current].record(gapNanos);
+        }
+    }
+
+    /**
+     * Maps a receive time to its second, growing the series when a new second starts.
+     */
+    private int second(long receiveNanos) {
+        long second = (receiveNanos - originNanos) / SECOND_NANOS;
+        if (second >= Integer.MAX_VALUE) {
+            throw new IllegalStateException("Experiment too long for the series");
+        }
+        int index = (int) second;
+        grow(index + 1);
+        return index;
+    }
+
+    /**
+     * Extends the series to at least the given number of seconds.
+     */
+    private void grow(int length) {
+        if (length > counts.length) {
+            int capacity = Math.max(counts.length * 2, length);
+            counts = Arrays.copyOf(counts, capacity);
+            latencies = Arrays.copyOf(latencies, capacity);
+            gaps = Arrays.copyOf(gaps, capacity);
+        }
+        for (int s = seconds; s < length; s++) {
+            if (latencies[s] == null) {
+                latencies[s] = new Histogram(MAX_LATENCY_NANOS, LATENCY_DIGITS);
+                gaps[s] = new Histogram(MAX_GAP_NANOS, LATENCY_DIGITS);
+            }
+        }
+        seconds = Math.max(seconds, length);
+    }
+
+    /**
+     * Adds the seconds of another series that started at the same time, to report the series of
+     * several consumers together.
+     *
+     * @param other the series to add
+     */
+    public void add(ThroughputSeries other) {
+        grow(other.seconds);
+        for (int second = 0; second < other.seconds; second++) {
+            counts[second] += other.counts[second];
+            latencies[second].add(other.latencies[second]);
+            gaps[second].add(other.gaps[second]);
+        }
+    }
+
+    /**
+     * @return the number of seconds from the start of the experiment to the last message
+     */
+    public int getSeconds() {
+        return seconds;
+    }
+
+    /**
+     * @param second a second since the start of the experiment
+     * @return the number of messages received in that second
+     */
+    public long getCount(int second) {
+        return counts[second];
+    }
+
+    /**
+     * @param second a second since the start of the experiment
+     * @return the latencies of the messages received in that second
+     */
+    public Histogram getLatencies(int second) {
+        return latencies[second];
+    }
+
+    /**
+     * Finds the steady-state window of the experiment.
+     *
+     * @return the window, or null if the experiment is shorter than {@value #MIN_STEADY_SECONDS}
+     * whole seconds once the warm-up and the tail are cut off
+     */
+    public Window steadyWindow() {
+        int from = truncation(counts, 0, seconds, false);
+        int to = seconds - truncation(counts, from, seconds, true);
+        return to - from >= MIN_STEADY_SECONDS ? new Window(from, to) : null;
+    }
+
+    /**
+     * Applies MSER to a range of the counts.
+     *
+     * @param values  the per-second counts
+     * @param from    the first second of the range
+     * @param to      the second after the last second of the range
+     * @param reverse true to truncate from the end of the range instead of its start
+     * @return the number of seconds to cut off
+     */
+    static int truncation(long[] values, int from, int to, boolean reverse) {
+        int n = to - from;
+        // walk the kept part from its far end so the sums of every candidate come in one pass
+        double sum = 0, sumOfSquares = 0;
+        int best = 0;
+        double bestScore = Double.MAX_VALUE;
+        for (int kept = 1; kept <= n; kept++) {
+            double value = values[reverse ? from + kept - 1 : to - kept];
+            sum += value;
+            sumOfSquares += value * value;
+            int cut = n - kept;
+            if (cut > n / 2) {
+                continue;
+            }
+            // the variance of the kept values over the number kept, i.e. the squared standard error
+            double score = (sumOfSquares - sum * sum / kept) / ((double) kept * kept);
+            if (score <= bestScore) {
+                bestScore = score;
+                best = cut;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param window the steady-state window
+     * @return the number of messages received in the window
+     */
+    public long count(Window window) {
+        long count = 0;
+        for (int second = window.from(); second < window.to(); second++) {
+            count += counts[second];
+        }
+        return count;
+    }
+
+    /**
+     * Merges the latencies of a window into a histogram.
+     *
+     * @param window the steady-state window
+     * @return a new histogram holding the latencies of the window
+     */
+    public Histogram latencies(Window window) {
+        return merge(latencies, MAX_LATENCY_NANOS, window);
+    }
+
+    /**
+     * Merges the inter-message gaps of a window into a histogram.
+     *
+     * @param window the steady-state window
+     * @return a new histogram holding the gaps of the window
+     */
+    public Histogram gaps(Window window) {
+        return merge(gaps, MAX_GAP_NANOS, window);
+    }
+
+    private static Histogram merge(Histogram[] perSecond, long highestTrackable, Window window) {
+        Histogram merged = new Histogram(highestTrackable, LATENCY_DIGITS);
+        for (int second = window.from(); second < window.to(); second++) {
+            merged.add(perSecond[second]);
+        }
+        return merged;
+    }
+}
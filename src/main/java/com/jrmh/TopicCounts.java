@@ -0,0 +1,154 @@
+package com.jrmh;
+
+import java.util.Arrays;
+
+/**
+ * The TopicCounts class counts the MQTT messages received per topic. It is an open-addressing
+ * hash map from topic to a {@code long} count with linear probing, so counting a message boxes
+ * nothing and allocates nothing once the map has grown to the number of topics. The hash of each
+ * key is kept next to it, so a probe only compares the strings of a matching hash.
+ * <p>
+ * The map is not thread-safe, like {@link MessageStats} it belongs to the analysis thread.
+ */
+public class TopicCounts {
+    private static final int INITIAL_CAPACITY = 64; // a power of two
+
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Counts a message.
+     *
+     * @param topic the topic of the message
+     */
+    public void increment(String topic) {
+        add(topic, 1);
+    }
+
+    /**
+     * Adds to the count of a topic, adding the topic if it is new.
+     *
+     * @param topic the topic
+     * @param count the number of messages to add
+     */
+    public void add(String topic, long count) {
+        int hash = spread(topic.hashCode());
+        int mask = keys.length - 1;
+        int slot = hash & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && keys[slot].equals(topic)) {
+                counts[slot] += count;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = topic;
+        hashes[slot] = hash;
+        counts[slot] = count;
+        // keep the load at most 1/2, so probes stay short
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    /**
+     * Adds the counts of another map, to report several consumers as one.
+     *
+     * @param other the counts to add
+     */
+    public void addAll(TopicCounts other) {
+        for (int slot = 0; slot < other.keys.length; slot++) {
+            if (other.keys[slot] != null) {
+                add(other.keys[slot], other.counts[slot]);
+            }
+        }
+    }
+
+    /**
+     * @param topic the topic
+     * @return the number of messages counted for the topic, 0 if it has none
+     */
+    public long get(String topic) {
+        int hash = spread(topic.hashCode());
+        int mask = keys.length - 1;
+        for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && keys[slot].equals(topic)) {
+                return counts[slot];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number of distinct topics counted
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the smallest count of any topic, 0 if there are none
+     */
+    public long min() {
+        long min = Long.MAX_VALUE;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null) {
+                min = Math.min(min, counts[slot]);
+            }
+        }
+        return size > 0 ? min : 0;
+    }
+
+    /**
+     * @return the largest count of any topic, 0 if there are none
+     */
+    public long max() {
+        long max = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null) {
+                max = Math.max(max, counts[slot]);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Forgets every topic for a new experiment, keeping the capacity the last one grew to.
+     */
+    public void reset() {
+        Arrays.fill(keys, null);
+        Arrays.fill(counts, 0);
+        size = 0;
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        long[] oldCounts = counts;
+        keys = new String[oldKeys.length * 2];
+        hashes = new int[oldKeys.length * 2];
+        counts = new long[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = oldHashes[i] & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                hashes[slot] = oldHashes[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    /**
+     * Mixes the high bits of a hash into the low ones the mask keeps, topics of one publisher
+     * differ only in their last characters.
+     */
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,207 @@
+package com.jrmh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The TopicTree holds the subscriptions of the {@link EmbeddedBroker}, one node per topic level,
+ * and finds the subscribers of a topic by walking its levels, following {@code +} and {@code #}
+ * branches as the MQTT 3.1.1 matching rules require. It is safe to subscribe, unsubscribe and
+ * match from several selector threads at once.
+ * <p>
+ * Shared subscriptions, {@code $share/group/filter} as Mosquitto accepts them from MQTT 3.1.1
+ * clients too, hang off the node of their filter as a group, and each matching message goes to
+ * one member of the group in turn.
+ *
+ * @param <S> the subscriber type
+ */
+public class TopicTree<S> {
+    private static final String SINGLE_LEVEL = "+";
+    private static final String MULTI_LEVEL = "#";
+    private static final String SHARED_PREFIX = "$share/";
+
+    private final Node<S> root = new Node<>();
+
+    private static final class Node<S> {
+        final Map<String, Node<S>> children = new ConcurrentHashMap<>();
+        final Map<S, Integer> subscribers = new ConcurrentHashMap<>();
+        final Map<String, SharedGroup<S>> groups = new ConcurrentHashMap<>();
+    }
+
+    private record Member<S>(S subscriber, int qos) {
+    }
+
+    /**
+     * The members of a shared subscription. The list is replaced on every change, so matching
+     * reads it without locking.
+     */
+    private static final class SharedGroup<S> {
+        volatile List<Member<S>> members = List.of();
+        final AtomicInteger next = new AtomicInteger();
+
+        synchronized void put(S subscriber, int qos) {
+            List<Member<S>> updated = new ArrayList<>(members);
+            updated.removeIf(member -> member.subscriber().equals(subscriber));
+            updated.add(new Member<>(subscriber, qos));
+            members = List.copyOf(updated);
+        }
+
+        synchronized void remove(S subscriber) {
+            List<Member<S>> updated = new ArrayList<>(members);
+            updated.removeIf(member -> member.subscriber().equals(subscriber));
+            members = List.copyOf(updated);
+        }
+    }
+
+    /**
+     * Checks a topic filter against the MQTT 3.1.1 rules: {@code +} and {@code #} must fill a whole
+     * level, and {@code #} must be the last level.
+     *
+     * @param filter the topic filter
+     * @return true if the filter is valid
+     */
+    public static boolean isValidFilter(String filter) {
+        if (filter.startsWith(SHARED_PREFIX)) {
+            int end = filter.indexOf('/', SHARED_PREFIX.length());
+            // the group name is a single level without wildcards, followed by a normal filter
+            if (end <= SHARED_PREFIX.length()) {
+                return false;
+            }
+            String group = filter.substring(SHARED_PREFIX.length(), end);
+            if (group.contains(SINGLE_LEVEL) || group.contains(MULTI_LEVEL)) {
+                return false;
+            }
+            filter = filter.substring(end + 1);
+        }
+        if (filter.isEmpty()) {
+            return false;
+        }
+        int from = 0;
+        while (true) {
+            int end = filter.indexOf('/', from);
+            boolean last = end < 0;
+            String level = filter.substring(from, last ? filter.length() : end);
+            if (level.length() > 1 && (level.contains(SINGLE_LEVEL) || level.contains(MULTI_LEVEL))) {
+                return false;
+            }
+            if (level.equals(MULTI_LEVEL) && !last) {
+                return false;
+            }
+            if (last) {
+                return true;
+            }
+            from = end + 1;
+        }
+    }
+
+    /**
+     * Adds or replaces a subscription.
+     *
+     * @param filter     a valid topic filter, or a shared subscription
+     * @param subscriber the subscriber
+     * @param qos        the maximum QoS granted to the subscriber
+     */
+    public void subscribe(String filter, S subscriber, int qos) {
+        if (filter.startsWith(SHARED_PREFIX)) {
+            int end = filter.indexOf('/', SHARED_PREFIX.length());
+            node(filter.substring(end + 1), true).groups
+                    .computeIfAbsent(filter.substring(SHARED_PREFIX.length(), end), group -> new SharedGroup<>())
+                    .put(subscriber, qos);
+            return;
+        }
+        node(filter, true).subscribers.put(subscriber, qos);
+    }
+
+    /**
+     * Removes a subscription, if there is one.
+     *
+     * @param filter     the topic filter
+     * @param subscriber the subscriber
+     */
+    public void unsubscribe(String filter, S subscriber) {
+        if (filter.startsWith(SHARED_PREFIX)) {
+            int end = filter.indexOf('/', SHARED_PREFIX.length());
+            Node<S> node = end < 0 ? null : node(filter.substring(end + 1), false);
+            SharedGroup<S> group = node == null ? null : node.groups.get(filter.substring(SHARED_PREFIX.length(), end));
+            if (group != null) {
+                group.remove(subscriber);
+            }
+            return;
+        }
+        Node<S> node = node(filter, false);
+        if (node != null) {
+            node.subscribers.remove(subscriber);
+        }
+    }
+
+    /**
+     * Visits every subscription matching a topic. A subscriber with several matching filters is
+     * visited once per filter, and a shared subscription once, with the member whose turn it is.
+     *
+     * @param topic   the topic of a published message, without wildcards
+     * @param visitor receives each matching subscriber and its granted QoS
+     */
+    public void match(String topic, ObjIntConsumer<S> visitor) {
+        // wildcards at the first level don't match topics starting with '$', such as $SYS
+        match(root, topic, 0, !topic.startsWith("$"), visitor);
+    }
+
+    private void match(Node<S> node, String topic, int from, boolean wildcards, ObjIntConsumer<S> visitor) {
+        // '#' matches this level and everything below it, including the parent level itself
+        Node<S> multi = wildcards ? node.children.get(MULTI_LEVEL) : null;
+        if (multi != null) {
+            visit(multi, visitor);
+        }
+        if (from > topic.length()) {
+            visit(node, visitor);
+            return;
+        }
+        int end = topic.indexOf('/', from);
+        if (end < 0) {
+            end = topic.length();
+        }
+        Node<S> exact = node.children.get(topic.substring(from, end));
+        if (exact != null) {
+            match(exact, topic, end + 1, true, visitor);
+        }
+        Node<S> single = wildcards ? node.children.get(SINGLE_LEVEL) : null;
+        if (single != null) {
+            match(single, topic, end + 1, true, visitor);
+        }
+    }
+
+    private void visit(Node<S> node, ObjIntConsumer<S> visitor) {
+        for (Map.Entry<S, Integer> subscription : node.subscribers.entrySet()) {
+            visitor.accept(subscription.getKey(), subscription.getValue());
+        }
+        if (node.groups.isEmpty()) {
+            return;
+        }
+        for (SharedGroup<S> group : node.groups.values()) {
+            List<Member<S>> members = group.members;
+            if (!members.isEmpty()) {
+                Member<S> member = members.get(Math.floorMod(group.next.getAndIncrement(), members.size()));
+                visitor.accept(member.subscriber(), member.qos());
+            }
+        }
+    }
+
+    private Node<S> node(String filter, boolean create) {
+        Node<S> node = root;
+        int from = 0;
+        while (node != null) {
+            int end = filter.indexOf('/', from);
+            String level = filter.substring(from, end < 0 ? filter.length() : end);
+            node = create ? node.children.computeIfAbsent(level, key -> new Node<>()) : node.children.get(level);
+            if (end < 0) {
+                break;
+            }
+            from = end + 1;
+        }
+        return node;
+    }
+}
@@ -0,0 +1,212 @@
+package com.jrmh;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The TraceReader streams back the records a {@link TraceWriter} wrote, segment by segment in the
+ * order they were written, for offline analysis. A segment of a run that didn't close its trace
+ * ends at the first record with experiment 0, so everything written before a crash is still read.
+ * <p>
+ * {@link #next()} moves a cursor over the records without allocating, {@link #stream()} wraps
+ * every record in a {@link Record}, and {@link #main(String[])} prints the trace as CSV.
+ */
+public class TraceReader implements AutoCloseable {
+    private final Iterator<Path> segments;
+    private MappedByteBuffer segment;
+    private int position;
+
+    /**
+     * A traced message, see {@link TraceWriter} for the fields.
+     */
+    public record Record(int experiment, int publisherId, long sequence, long counter, long sendNanos, long receiveNanos) {
+        /**
+         * @return the one-way latency in nanoseconds, or -1 for ASCII payloads which carry no send time
+         */
+        public long latencyNanos() {
+            return sendNanos != 0 ? receiveNanos - sendNanos : -1;
+        }
+    }
+
+    /**
+     * Constructs a TraceReader instance over the segments in a directory.
+     *
+     * @param directory the directory the TraceWriter wrote to
+     * @throws IOException if the directory cannot be listed
+     */
+    public TraceReader(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> paths = files.filter(path -> path.getFileName().toString().matches("trace-\\d+\\.bin")).sorted().toList();
+            this.segments = paths.iterator();
+        }
+    }
+
+    /**
+     * Moves the cursor to the next record.
+     *
+     * @return true if there is a record under the cursor, false once the trace is exhausted
+     * @throws IOException if a segment cannot be read or is not a trace segment
+     */
+    public boolean next() throws IOException {
+        if (segment != null) {
+            position += TraceWriter.RECORD_LENGTH;
+        }
+        while (segment == null || position + TraceWriter.RECORD_LENGTH > segment.limit() || segment.getInt(position) == 0) {
+            if (!segments.hasNext()) {
+                segment = null;
+                return false;
+            }
+            open(segments.next());
+        }
+        return true;
+    }
+
+    private void open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (segment.limit() < TraceWriter.HEADER_LENGTH || segment.getInt(0) != TraceWriter.MAGIC) {
+            throw new IOException(path + " is not a trace segment");
+        }
+        if (segment.getInt(4) != TraceWriter.VERSION || segment.getInt(8) != TraceWriter.RECORD_LENGTH) {
+            throw new IOException(path + " has unsupported version " + segment.getInt(4));
+        }
+        position = TraceWriter.HEADER_LENGTH;
+    }
+
+    /**
+     * @return the 1-based index of the experiment of the record under the cursor
+     */
+    public int experiment() {
+        return segment.getInt(position);
+    }
+
+    /**
+     * @return the publisher id of the record under the cursor
+     */
+    public int publisherId() {
+        return segment.getInt(position + 4);
+    }
+
+    /**
+     * @return the per-publisher sequence number of the record under the cursor, -1 for ASCII payloads
+     */
+    public long sequence() {
+        return segment.getLong(position + 8);
+    }
+
+    /**
+     * @return the global counter of the record under the cursor
+     */
+    public long counter() {
+        return segment.getLong(position + 16);
+    }
+
+    /**
+     * @return the send time on the Analyser's clock of the record under the cursor, 0 for ASCII payloads
+     */
+    public long sendNanos() {
+        return segment.getLong(position + 24);
+    }
+
+    /**
+     * @return the receive time of the record under the cursor
+     */
+    public long receiveNanos() {
+        return segment.getLong(position + 32);
+    }
+
+    /**
+     * @return the record under the cursor
+     */
+    public Record record() {
+        return new Record(experiment(), publisherId(), sequence(), counter(), sendNanos(), receiveNanos());
+    }
+
+    /**
+     * Streams the remaining records. The stream shares the cursor, so it is consumed once.
+     *
+     * @return the records in the order they were written
+     */
+    public Stream<Record> stream() {
+        Iterator<Record> records = new Iterator<>() {
+            private boolean advanced;
+            private boolean available;
+
+            @Override
+            public boolean hasNext() {
+                if (!advanced) {
+                    try {
+                        available = TraceReader.this.next();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    advanced = true;
+                }
+                return available;
+            }
+
+            @Override
+            public Record next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                advanced = false;
+                return record();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(records, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    @Override
+    public void close() {
+        // the mappings are released once they are garbage collected
+        segment = null;
+    }
+
+    /**
+     * Prints a trace as CSV on standard output.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        String traceDirectory = "trace"; // default value
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-T":
+                    if (i + 1 < args.length) {
+                        traceDirectory = args[++i];
+                    } else {
+                        System.err.println("Missing value for -T");
+                        return;
+                    }
+                    break;
+            }
+        }
+        try (TraceReader reader = new TraceReader(Path.of(traceDirectory));
+             PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16))) {
+            writer.println("Experiment,Publisher_Id,Sequence,Counter,Send_(ns),Receive_(ns),Latency_(ns)");
+            while (reader.next()) {
+                long send = reader.sendNanos();
+                writer.printf("%d,%d,%d,%d,%d,%d,%s%n", reader.experiment(), reader.publisherId(), reader.sequence(), reader.counter(),
+                        send, reader.receiveNanos(), send != 0 ? Long.toString(reader.receiveNanos() - send) : "");
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read the trace: " + e.getMessage());
+        }
+    }
+}
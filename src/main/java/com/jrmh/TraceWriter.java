@@ -0,0 +1,220 @@
+package com.jrmh;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The TraceWriter records every received message as a fixed-width binary record, for offline
+ * investigation of runs whose aggregate results look odd. It runs on the analysis thread behind the
+ * {@link IngestRing}, so the Paho callback never waits for it, and it appends to memory-mapped
+ * segment files, so a record costs a few stores into the page cache and no system call.
+ * <p>
+ * Each segment starts with a {@value #HEADER_LENGTH}-byte header (magic, version, record length)
+ * followed by {@value #RECORD_LENGTH}-byte big-endian records:
+ * <pre>
+ * offset  0: int  experiment    1-based index of the experiment, 0 marks the end of the segment
+ * offset  4: int  publisher id  from the binary payload, or the instance in the topic for ASCII payloads
+ * offset  8: long sequence      per-publisher sequence number, -1 for ASCII payloads
+ * offset 16: long counter       global counter
+ * offset 24: long send ns       send time moved onto the Analyser's clock, 0 for ASCII payloads
+ * offset 32: long receive ns    System.nanoTime() at which the Analyser received the message
+ * </pre>
+ * A {@link BinaryBatch} is written as one record per record it holds. A segment is rolled once
+ * full, and truncated to the records written when it is closed.
+ * {@link TraceReader} streams the records back.
+ */
+public class TraceWriter implements IngestRing.Handler, AutoCloseable {
+    public static final int MAGIC = 0x4D515452; // "MQTR"
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 16;
+    public static final int RECORD_LENGTH = 40;
+    public static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+    private final Path directory;
+    private final long segmentSize;
+    private int segmentIndex = 0;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long records = 0;
+
+    // written by the Analyser between experiments, while the ring is empty
+    private volatile int experiment = 0;
+    private long[] clockOffsets = new long[0];
+
+    /**
+     * Constructs a TraceWriter instance and opens the first segment.
+     *
+     * @param directory   the directory the segments are written to, created if missing
+     * @param segmentSize the size of a segment file in bytes
+     * @throws IOException if the directory or the first segment cannot be created
+     */
+    public TraceWriter(Path directory, long segmentSize) throws IOException {
+        if (segmentSize < HEADER_LENGTH + RECORD_LENGTH || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment size must be in range [" + (HEADER_LENGTH + RECORD_LENGTH) + ", 2^31)");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize - (segmentSize - HEADER_LENGTH) % RECORD_LENGTH;
+        Files.createDirectories(directory);
+        roll();
+    }
+
+    /**
+     * Starts tracing a new experiment.
+     *
+     * @param experiment   the 1-based index of the experiment
+     * @param clockOffsets the publisher clock minus the local clock by publisher id, from {@link ClockSync}
+     */
+    public void startExperiment(int experiment, long[] clockOffsets) {
+        this.clockOffsets = clockOffsets;
+        this.experiment = experiment;
+    }
+
+    @Override
+    public void onMessage(String topic, byte[] payload, long arrivalNanos) {
+        int experiment = this.experiment;
+        if (experiment == 0) {
+            return;
+        }
+        if (BinaryBatch.isBatch(payload)) {
+            // one trace record per record of the batch, all with the batch's receive time
+            int offset = BinaryBatch.HEADER_LENGTH;
+            for (int i = 0, records = BinaryBatch.records(payload); i < records; i++) {
+                int length = BinaryBatch.recordLength(payload, offset);
+                if (length < 0 || !reserve()) {
+                    return;
+                }
+                writeBinary(experiment, payload, offset + BinaryBatch.LENGTH_PREFIX, arrivalNanos);
+                offset += BinaryBatch.LENGTH_PREFIX + length;
+            }
+        } else if (reserve()) {
+            if (BinaryPayload.isBinary(payload)) {
+                writeBinary(experiment, payload, 0, arrivalNanos);
+            } else {
+                int position = segment.position();
+                segment.putInt(position, experiment);
+                segment.putInt(position + 4, instanceOf(topic));
+                segment.putLong(position + 8, -1);
+                segment.putLong(position + 16, MessageStats.parseCounter(payload));
+                segment.putLong(position + 24, 0);
+                segment.putLong(position + 32, arrivalNanos);
+                segment.position(position + RECORD_LENGTH);
+                records++;
+            }
+        }
+    }
+
+    /**
+     * Makes room for one more record, rolling to the next segment if the current one is full.
+     *
+     * @return false if the next segment cannot be created, tracing is then stopped
+     */
+    private boolean reserve() {
+        if (segment.remaining() >= RECORD_LENGTH) {
+            return true;
+        }
+        try {
+            roll();
+            return true;
+        } catch (IOException e) {
+            // stop tracing rather than stall the analysis thread
+            e.printStackTrace();
+            this.experiment = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Writes the trace record of a {@link BinaryPayload} record, on its own or in a batch.
+     */
+    private void writeBinary(int experiment, byte[] payload, int offset, long arrivalNanos) {
+        int position = segment.position();
+        int publisherId = BinaryPayload.publisherId(payload, offset);
+        long clockOffset = publisherId >= 0 && publisherId < clockOffsets.length ? clockOffsets[publisherId] : 0;
+        segment.putInt(position, experiment);
+        segment.putInt(position + 4, publisherId);
+        segment.putLong(position + 8, BinaryPayload.sequence(payload, offset));
+        segment.putLong(position + 16, BinaryPayload.counter(payload, offset));
+        segment.putLong(position + 24, BinaryPayload.sendNanos(payload, offset) - clockOffset);
+        segment.putLong(position + 32, arrivalNanos);
+        segment.position(position + RECORD_LENGTH);
+        records++;
+    }
+
+    /**
+     * Parses the instance out of a {@code counter/instance/qos/delay} topic without allocating.
+     *
+     * @param topic the topic
+     * @return the instance, or -1 if the topic has none
+     */
+    static int instanceOf(String topic) {
+        int index = topic.indexOf('/') + 1;
+        if (index == 0 || index >= topic.length()) {
+            return -1;
+        }
+        int instance = 0;
+        for (; index < topic.length() && topic.charAt(index) != '/'; index++) {
+            char c = topic.charAt(index);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            instance = instance * 10 + (c - '0');
+        }
+        return instance;
+    }
+
+    /**
+     * @return the directory the segments are written to
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the number of records written so far
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Closes the current segment and maps the next one.
+     */
+    private void roll() throws IOException {
+        closeSegment();
+        Path path = directory.resolve(segmentName(segmentIndex++));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.putInt(MAGIC).putInt(VERSION).putInt(RECORD_LENGTH).putInt(0);
+    }
+
+    private void closeSegment() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        int used = segment.position();
+        // the mapping stays valid until it is garbage collected, nothing touches it beyond this point
+        segment = null;
+        channel.truncate(used);
+        channel.close();
+        channel = null;
+    }
+
+    /**
+     * @param index the index of the segment
+     * @return the file name of the segment, which sorts in the order the segments were written
+     */
+    static String segmentName(int index) {
+        return String.format("trace-%06d.bin", index);
+    }
+
+    @Override
+    public void close() throws IOException {
+        experiment = 0;
+        closeSegment();
+    }
+}
@@ -0,0 +1,172 @@
+package com.jrmh;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.client.persist.MqttDefaultFilePersistence;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+import java.nio.file.Path;
+
+/**
+ * The V5PublishEngine is the {@link PublishEngine} of an MQTT 5 connection, a single Paho
+ * {@code mqttv5} {@link MqttAsyncClient}.
+ * <p>
+ * The broker announces two limits in its CONNACK that the engine works with:
+ * <ul>
+ *     <li>Receive Maximum, the number of QoS 1 and 2 messages it accepts unacknowledged from the
+ *     client. The window shrinks to it, so the engine blocks rather than Paho refusing the publish
+ *     beyond it.</li>
+ *     <li>Topic Alias Maximum, the number of topic aliases it accepts. Paho gives the first topics
+ *     published on the connection an alias each and from their second message on sends the two byte
+ *     alias instead of the topic name, see {@link #getTopicAliasMaximum()}. Aliases belong to the
+ *     connection and Paho never hands one to another topic, so a new set of topics needs a new
+ *     connection.</li>
+ * </ul>
+ * The publisher connects a new engine for every v5 experiment before it acknowledges the config,
+ * so the connect stays out of the measured time like any other reconnect.
+ * <p>
+ * The publish loop encodes the same {@link MqttMessage}s for both protocols, the engine copies the
+ * payload reference and the QoS into a fresh v5 message per publish, because Paho writes the alias
+ * into the properties of the message it sends.
+ */
+public class V5PublishEngine extends PublishEngine {
+    // how long the broker keeps a persistent session after the connection closes, in seconds
+    private static final long SESSION_EXPIRY = 3600;
+    // MQTT 5 defaults when the CONNACK leaves a limit out
+    private static final int DEFAULT_RECEIVE_MAXIMUM = 65535;
+    private static final int DEFAULT_TOPIC_ALIAS_MAXIMUM = 0;
+
+    private final MqttAsyncClient client;
+    private int topicAliasMaximum = DEFAULT_TOPIC_ALIAS_MAXIMUM;
+
+    /**
+     * Completion callback shared by every publish, it hands the slot back to the window.
+     */
+    private final MqttActionListener completion = new MqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            completed((PayloadEncoder) token.getUserContext());
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable exception) {
+            failed((PayloadEncoder) token.getUserContext());
+        }
+    };
+
+    /**
+     * Constructs a V5PublishEngine instance. The client runs on Paho's own threads, the
+     * {@code mqttv5} client takes no shared executor.
+     *
+     * @param brokerURL   the URL of the MQTT broker
+     * @param clientId    the client id used to connect
+     * @param windowSize  the maximum number of unacknowledged messages, must be at least 1
+     * @param persistence the store of the client's in-flight QoS 1 and 2 messages, see {@link #persistence}
+     * @param metrics     the live metrics of the publishing instance, recorded by the completion callback
+     * @throws MqttException if the client can not be created
+     */
+    public V5PublishEngine(String brokerURL, String clientId, int windowSize, MqttClientPersistence persistence,
+                           PublishMetrics metrics) throws MqttException {
+        super(windowSize, metrics);
+        try {
+            this.client = new MqttAsyncClient(brokerURL, clientId, persistence);
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw wrap(e);
+        }
+    }
+
+    /**
+     * Connects to the broker, waits until the connection is established and adopts the limits
+     * of its CONNACK.
+     *
+     * @param cleanSession false to resume the session the broker and the persistence kept for the client id
+     * @throws MqttException if an error occurs while connecting
+     */
+    @Override
+    public void connect(boolean cleanSession) throws MqttException {
+        MqttConnectionOptions connOpts = new MqttConnectionOptions();
+        connOpts.setAutomaticReconnect(true);
+        // v5 splits v3.1.1's clean session into a clean start and the lifetime of the session
+        connOpts.setCleanStart(cleanSession);
+        connOpts.setSessionExpiryInterval(cleanSession ? 0L : SESSION_EXPIRY);
+        try {
+            IMqttToken token = client.connect(connOpts);
+            token.waitForCompletion();
+            MqttProperties connack = token.getResponseProperties();
+            Integer receiveMaximum = connack != null ? connack.getReceiveMaximum() : null;
+            Integer aliasMaximum = connack != null ? connack.getTopicAliasMaximum() : null;
+            limitWindow(receiveMaximum != null ? receiveMaximum : DEFAULT_RECEIVE_MAXIMUM);
+            topicAliasMaximum = aliasMaximum != null ? aliasMaximum : DEFAULT_TOPIC_ALIAS_MAXIMUM;
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    public void close() throws MqttException {
+        try {
+            try {
+                // a client whose connect failed has nothing to disconnect, but still holds its persistence
+                if (client.isConnected()) {
+                    client.disconnect().waitForCompletion();
+                }
+            } finally {
+                client.close();
+            }
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    public void publish(String topic, MqttMessage message, PayloadEncoder slot) throws MqttException {
+        org.eclipse.paho.mqttv5.common.MqttMessage v5 = new org.eclipse.paho.mqttv5.common.MqttMessage(message.getPayload());
+        v5.setQos(message.getQos());
+        try {
+            sent(slot);
+            client.publish(topic, v5, slot, completion);
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            refused(slot);
+            throw wrap(e);
+        }
+    }
+
+    /**
+     * @return the number of topics the broker accepts an alias for on this connection, the
+     * topics published first get them, 0 until connected or if the broker accepts no aliases
+     */
+    public int getTopicAliasMaximum() {
+        return topicAliasMaximum;
+    }
+
+    /**
+     * Creates the {@code mqttv5} client persistence of a store. Only Paho's own stores exist for
+     * the v5 client, {@code memory} and {@code file}.
+     *
+     * @param store     the name of the store
+     * @param directory the directory the stores keep their files in
+     * @return a new, unopened persistence
+     * @throws IllegalArgumentException if the store has no v5 implementation
+     */
+    static MqttClientPersistence persistence(String store, Path directory) {
+        return switch (store) {
+            case Publisher.MEMORY_STORE -> new MemoryPersistence();
+            // apart from the v3.1.1 files, which differ in format
+            case "file" -> new MqttDefaultFilePersistence(directory.resolve("file-v5").toString());
+            default -> throw new IllegalArgumentException("Store " + store + " is not supported with MQTT 5");
+        };
+    }
+
+    /**
+     * Wraps a v5 exception in the v3 one the publish loop handles.
+     */
+    private static MqttException wrap(org.eclipse.paho.mqttv5.common.MqttException e) {
+        return new MqttException(e);
+    }
+}
@@ -0,0 +1,234 @@
+package com.jrmh;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives the {@link EmbeddedBroker} with real Paho clients over loopback: the QoS 0, 1 and 2 flows,
+ * {@code +} and {@code #} matching, the takeover of a client id by a newer connection and the
+ * rejection of a malformed remaining length. Every test gets a broker of its own on a free port.
+ */
+class EmbeddedBrokerTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private EmbeddedBroker broker;
+    private String brokerUrl;
+    private final List<MqttClient> clients = new ArrayList<>();
+
+    @BeforeEach
+    void startBroker() throws IOException {
+        broker = new EmbeddedBroker("localhost", 0, 1);
+        broker.start();
+        brokerUrl = "tcp://localhost:" + broker.getPort();
+    }
+
+    @AfterEach
+    void stopBroker() {
+        for (MqttClient client : clients) {
+            try {
+                if (client.isConnected()) {
+                    client.disconnect();
+                }
+                client.close();
+            } catch (MqttException e) {
+                // the broker may have closed the connection already
+            }
+        }
+        broker.close();
+    }
+
+    @Test
+    void deliversEveryQos() throws Exception {
+        Inbox inbox = new Inbox();
+        MqttClient subscriber = connect("subscriber", inbox);
+        subscriber.subscribe("qos/test", 2);
+        MqttClient publisher = connect("publisher", null);
+        for (int qos = 0; qos <= 2; qos++) {
+            publisher.publish("qos/test", payload("qos" + qos), qos, false);
+            Received received = inbox.take();
+            assertEquals("qos/test", received.topic);
+            assertEquals("qos" + qos, received.payload);
+            assertEquals(qos, received.qos, "delivered at the lower of publish and granted QoS");
+        }
+    }
+
+    @Test
+    void downgradesToTheGrantedQos() throws Exception {
+        Inbox inbox = new Inbox();
+        MqttClient subscriber = connect("subscriber", inbox);
+        subscriber.subscribe("qos/test", 1);
+        MqttClient publisher = connect("publisher", null);
+        publisher.publish("qos/test", payload("two"), 2, false);
+        assertEquals(1, inbox.take().qos);
+    }
+
+    @Test
+    void matchesWildcards() throws Exception {
+        Inbox singleLevel = new Inbox();
+        connect("single", singleLevel).subscribe("counter/+/qos", 1);
+        Inbox multiLevel = new Inbox();
+        connect("multi", multiLevel).subscribe("counter/#", 1);
+        MqttClient publisher = connect("publisher", null);
+        for (String topic : List.of("counter/1/qos", "counter/1/delay", "counter/1/qos/extra", "other/1/qos")) {
+            publisher.publish(topic, payload(topic), 1, false);
+        }
+        // a marker published last, QoS 1 from one publisher arrives in order
+        publisher.publish("counter/end/qos", payload("end"), 1, false);
+
+        assertEquals(Set.of("counter/1/qos", "counter/end/qos"), singleLevel.topicsUntil("counter/end/qos"));
+        assertEquals(Set.of("counter/1/qos", "counter/1/delay", "counter/1/qos/extra", "counter/end/qos"),
+                multiLevel.topicsUntil("counter/end/qos"));
+    }
+
+    @Test
+    void deliversOnceForOverlappingSubscriptions() throws Exception {
+        Inbox inbox = new Inbox();
+        MqttClient subscriber = connect("subscriber", inbox);
+        subscriber.subscribe(new String[]{"counter/#", "counter/+/qos"}, new int[]{0, 1});
+        MqttClient publisher = connect("publisher", null);
+        publisher.publish("counter/1/qos", payload("once"), 1, false);
+        Received received = inbox.take();
+        assertEquals(1, received.qos, "at the highest QoS of the matching subscriptions");
+        assertNull(inbox.poll(500), "a second copy was delivered");
+    }
+
+    @Test
+    void newerConnectionTakesOverTheClientId() throws Exception {
+        CountDownLatch lost = new CountDownLatch(1);
+        MqttClient first = new MqttClient(brokerUrl, "same-id", new MemoryPersistence());
+        clients.add(first);
+        first.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+                lost.countDown();
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        first.connect(options());
+
+        Inbox inbox = new Inbox();
+        MqttClient second = connect("same-id", inbox);
+        assertTrue(lost.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "the older connection was not closed");
+        assertFalse(first.isConnected());
+        assertEquals(1, broker.getConnectedClients());
+
+        second.subscribe("takeover", 1);
+        connect("publisher", null).publish("takeover", payload("still served"), 1, false);
+        assertEquals("still served", inbox.take().payload);
+    }
+
+    @Test
+    void closesOnAFiveByteRemainingLength() throws IOException {
+        try (Socket socket = new Socket("localhost", broker.getPort())) {
+            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            // a valid CONNECT, but with its remaining length of 16 padded out to five bytes
+            byte[] body = {0, 4, 'M', 'Q', 'T', 'T', 4, 2, 0, 60, 0, 4, 'r', 'a', 'w', '1'};
+            socket.getOutputStream().write(new byte[]{0x10, (byte) (0x80 | body.length), (byte) 0x80, (byte) 0x80, (byte) 0x80, 0});
+            socket.getOutputStream().write(body);
+            socket.getOutputStream().flush();
+            InputStream in = socket.getInputStream();
+            assertEquals(-1, in.read(), "the broker answered a malformed packet");
+        }
+    }
+
+    private MqttClient connect(String clientId, Inbox inbox) throws MqttException {
+        MqttClient client = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
+        clients.add(client);
+        if (inbox != null) {
+            client.setCallback(inbox);
+        }
+        client.connect(options());
+        return client;
+    }
+
+    private static MqttConnectOptions options() {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setConnectionTimeout((int) TIMEOUT_SECONDS);
+        return options;
+    }
+
+    private static byte[] payload(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A message as the subscriber received it.
+     */
+    private record Received(String topic, String payload, int qos) {
+    }
+
+    /**
+     * Collects the messages of a subscriber.
+     */
+    private static class Inbox implements MqttCallback {
+        private final BlockingQueue<Received> messages = new LinkedBlockingQueue<>();
+
+        Received take() throws InterruptedException {
+            Received received = poll(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            assertNotNull(received, "no message arrived");
+            return received;
+        }
+
+        Received poll(long millis) throws InterruptedException {
+            return messages.poll(millis, TimeUnit.MILLISECONDS);
+        }
+
+        Set<String> topicsUntil(String last) throws InterruptedException {
+            Set<String> topics = new HashSet<>();
+            String topic;
+            do {
+                topic = take().topic;
+                topics.add(topic);
+            } while (!topic.equals(last));
+            return topics;
+        }
+
+        @Override
+        public void connectionLost(Throwable cause) {
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) {
+            messages.add(new Received(topic, new String(message.getPayload(), StandardCharsets.UTF_8), message.getQos()));
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.jrmh;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs a one-cell experiment matrix end to end: a {@link Publisher} pool and an {@link Analyser},
+ * each in a JVM of its own like in a real run, against an {@link EmbeddedBroker} on a free port,
+ * and checks the row the Analyser writes to {@code result.csv}. Both programs write their files
+ * to the working directory, so they run in a temporary one.
+ */
+class ExperimentRunTest {
+    private static final long TIMEOUT_SECONDS = 120;
+
+    @TempDir
+    Path directory;
+
+    private EmbeddedBroker broker;
+    private String brokerUrl;
+    private final List<Process> processes = new ArrayList<>();
+
+    @BeforeEach
+    void startBroker() throws IOException {
+        broker = new EmbeddedBroker("localhost", 0, 1);
+        broker.start();
+        brokerUrl = "tcp://localhost:" + broker.getPort();
+    }
+
+    @AfterEach
+    void stop() {
+        // the Publisher waits for further experiments until it is stopped
+        for (Process process : processes) {
+            process.destroyForcibly();
+        }
+        broker.close();
+    }
+
+    @Test
+    void writesTheResultOfOneExperiment() throws Exception {
+        start("publisher.log", Publisher.class, "-b", brokerUrl, "-t", "1", "-w", "1", "-f", "binary");
+        Process analyser = start("analyser.log", Analyser.class, "-b", brokerUrl, "-d", "0", "-p", "2", "-s", "2", "-i", "1");
+        assertTrue(analyser.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS), "the Analyser did not finish\n" + logs());
+
+        Path result = directory.resolve("result.csv");
+        assertTrue(Files.exists(result), "no result.csv\n" + logs());
+        List<String> lines = Files.readAllLines(result);
+        assertEquals(2, lines.size(), "expected the header and one row\n" + logs());
+        List<String> header = Arrays.asList(lines.get(0).split(","));
+        String[] row = lines.get(1).split(",", -1);
+        assertEquals(header.size(), row.length, "the row does not match the header");
+
+        assertEquals("2", row[header.indexOf("P2B_QoS")]);
+        assertEquals("2", row[header.indexOf("A2B_QoS")]);
+        assertEquals("0", row[header.indexOf("Delay_(ms)")]);
+        assertEquals("1", row[header.indexOf("Instance_Count")]);
+        assertEquals("3.1.1", row[header.indexOf("Protocol")]);
+        long received = Long.parseLong(row[header.indexOf("Total_Messages_Received")]);
+        assertTrue(received > 0, "no message arrived\n" + logs());
+        // exactly once in both legs, over loopback
+        assertEquals("0", row[header.indexOf("Lost_Messages")]);
+        assertEquals("0", row[header.indexOf("Duplicate_Messages")]);
+        assertEquals("0", row[header.indexOf("Ingest_Drops")]);
+        // one record per MQTT message on one topic without batching
+        assertEquals(received, Long.parseLong(row[header.indexOf("MQTT_Messages_Received")]));
+        assertEquals("1", row[header.indexOf("Topics_Received")]);
+    }
+
+    /**
+     * Starts a program in a JVM of its own, on the test's class path, in the temporary directory.
+     */
+    private Process start(String log, Class<?> main, String... args) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                main.getName()));
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve(log).toFile())
+                .start();
+        processes.add(process);
+        return process;
+    }
+
+    private String logs() throws IOException {
+        StringBuilder logs = new StringBuilder();
+        for (String log : List.of("publisher.log", "analyser.log")) {
+            Path path = directory.resolve(log);
+            logs.append("--- ").append(log).append('\n');
+            if (Files.exists(path)) {
+                logs.append(Files.readString(path));
+            }
+        }
+        return logs.toString();
+    }
+}
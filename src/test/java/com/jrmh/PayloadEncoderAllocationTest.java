@@ -0,0 +1,68 @@
+package com.jrmh;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks the allocation budget of the publish hot path with the JVM's per-thread allocation
+ * counter: once an encoder's buffers exist, encoding a counter or a binary record allocates
+ * nothing, whatever the value. The budget is the one {@code build.gradle.kts} gives the
+ * {@code PublishPathBenchmark}, a byte per message, which leaves room for the counter's own
+ * bookkeeping but not for a single object per message.
+ */
+class PayloadEncoderAllocationTest {
+    private static final int MESSAGES = 1_000_000;
+    private static final double BUDGET_BYTES_PER_MESSAGE = 1.0;
+
+    private static com.sun.management.ThreadMXBean threads;
+
+    @BeforeAll
+    static void setUp() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "The JVM has no per-thread allocation counter");
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported(), "The JVM has no per-thread allocation counter");
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    void asciiEncodeStaysWithinBudget() {
+        PayloadEncoder encoder = new PayloadEncoder(1);
+        // every digit length gets its buffer once, before the measurement
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 10; value *= 10) {
+            encoder.encode(value);
+        }
+        long sink = 0;
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MESSAGES; i++) {
+            sink += encoder.encode(i * 7919L).getPayload().length;
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        assertWithinBudget("ASCII", allocated, sink);
+    }
+
+    @Test
+    void binaryEncodeStaysWithinBudget() {
+        PayloadEncoder encoder = new PayloadEncoder(1);
+        encoder.encode(1, 0, 0, System.nanoTime());
+        long sink = 0;
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MESSAGES; i++) {
+            sink += encoder.encode(1, i, i, System.nanoTime()).getPayload().length;
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        assertWithinBudget("binary", allocated, sink);
+    }
+
+    private static void assertWithinBudget(String format, long allocated, long sink) {
+        assertTrue(sink > 0);
+        double perMessage = (double) allocated / MESSAGES;
+        assertTrue(perMessage <= BUDGET_BYTES_PER_MESSAGE,
+                String.format("%s encode allocated %.2f B/message, budget %.1f B/message", format, perMessage, BUDGET_BYTES_PER_MESSAGE));
+    }
+}